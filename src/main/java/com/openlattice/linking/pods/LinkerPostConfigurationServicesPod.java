@@ -42,9 +42,15 @@ import com.openlattice.datastore.services.EdmManager;
 import com.openlattice.datastore.services.EntitySetManager;
 import com.openlattice.ids.HazelcastIdGenerationService;
 import com.openlattice.linking.*;
+import com.openlattice.linking.blocking.BlockBudget;
 import com.openlattice.linking.blocking.ElasticsearchBlocker;
+import com.openlattice.linking.clustering.ClusterSummaries;
 import com.openlattice.linking.controllers.RealtimeLinkingController;
 import com.openlattice.linking.graph.PostgresLinkingQueryService;
+import com.openlattice.linking.matching.PrefilterCascade;
+import com.openlattice.linking.replay.BlockRecorder;
+import com.openlattice.linking.scheduling.LinkerPartitions;
+import com.openlattice.linking.util.PersonProperties;
 import com.zaxxer.hikari.HikariDataSource;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -75,6 +81,9 @@ public class LinkerPostConfigurationServicesPod {
     @Inject
     private Matcher matcher;
 
+    @Inject
+    private PrefilterCascade prefilterCascade;
+
     @Inject
     private ByteBlobDataManager byteBlobDataManager;
 
@@ -105,6 +114,9 @@ public class LinkerPostConfigurationServicesPod {
     @Inject
     private HealthCheckRegistry healthCheckRegistry;
 
+    @Inject
+    private LinkingFeedbackIndex linkingFeedbackIndex;
+
     @Bean
     public HazelcastIdGenerationService idGeneration() {
         return new HazelcastIdGenerationService( hazelcastClientProvider );
@@ -134,13 +146,26 @@ public class LinkerPostConfigurationServicesPod {
         return new EdmCachingDataLoader( dataQueryService(), hazelcastInstance );
     }
 
+    @Bean
+    public BlockBudget blockBudget() {
+        return new BlockBudget( linkingConfiguration, metricRegistry );
+    }
+
+    @Bean
+    public ClusterSummaries clusterSummaries() {
+        return new ClusterSummaries( linkingConfiguration, metricRegistry );
+    }
+
     @Bean
     public Blocker blocker() throws IOException {
         return new ElasticsearchBlocker(
                 elasticsearchApi,
                 dataLoader(),
-                postgresLinkingFeedbackQueryService(),
-                hazelcastInstance );
+                linkingFeedbackIndex,
+                blockBudget(),
+                hazelcastInstance,
+                linkingConfiguration,
+                metricRegistry );
     }
 
     @Bean
@@ -167,22 +192,91 @@ public class LinkerPostConfigurationServicesPod {
     }
 
     @Bean
-    public BackgroundLinkingService linkingService() throws IOException {
-        return new BackgroundLinkingService( executor,
-                hazelcastInstance,
+    public EntityLinker entityLinker() throws IOException {
+        return new EntityLinker(
                 blocker(),
                 matcher,
                 idService(),
                 dataLoader(),
                 lqs(),
                 postgresLinkingFeedbackQueryService(),
+                linkingFeedbackIndex,
+                blockBudget(),
+                clusterSummaries(),
+                linkingJournal(),
+                blockRecorder() );
+    }
+
+    @Bean
+    public BlockRecorder blockRecorder() {
+        return new BlockRecorder(
+                linkingConfiguration,
+                edm.getFqnToIdMap( PersonProperties.FQNS ),
+                metricRegistry );
+    }
+
+    @Bean
+    public BackgroundLinkingService linkingService() throws IOException {
+        return new BackgroundLinkingService( executor,
+                hazelcastInstance,
+                entityLinker(),
+                lqs(),
                 edm.getEntityTypeUuids( linkingConfiguration.getEntityTypes() ),
-                linkingConfiguration );
+                linkingConfiguration,
+                metricRegistry,
+                linkingProgressTracker(),
+                linkerPartitions(),
+                linkingJournal(),
+                linkingWarmup() );
+    }
+
+    @Bean
+    public LinkingWarmup linkingWarmup() {
+        var warmup = new LinkingWarmup(
+                matcher,
+                prefilterCascade,
+                edm.getFqnToIdMap( PersonProperties.FQNS ),
+                linkingConfiguration,
+                metricRegistry );
+        healthCheckRegistry.register( "linking-warmup", warmup );
+        return warmup;
+    }
+
+    @Bean
+    public LinkingJournal linkingJournal() {
+        if ( !linkingConfiguration.getLinkingJournalEnabled() ) {
+            return new NoOpLinkingJournal();
+        }
+        return new PostgresLinkingJournal( hikariDataSource, linkerPartitions().getNodeId(), metricRegistry );
+    }
+
+    @Bean
+    public LinkerPartitions linkerPartitions() {
+        return new LinkerPartitions( hazelcastInstance, metricRegistry );
+    }
+
+    @Bean
+    public LinkingProgressTracker linkingProgressTracker() {
+        return new LinkingProgressTracker(
+                lqs(),
+                edm.getEntityTypeUuids( linkingConfiguration.getEntityTypes() ),
+                linkingConfiguration,
+                metricRegistry );
     }
 
     @Bean
     public RealtimeLinkingController realtimeLinkingController() {
-        return new RealtimeLinkingController( linkingConfiguration, edm );
+        return new RealtimeLinkingController( edm );
+    }
+
+    @Bean
+    public PostgresLinkingFeedbackWriter postgresLinkingFeedbackWriter() {
+        return new PostgresLinkingFeedbackWriter( hikariDataSource );
+    }
+
+    @Bean
+    public PostgresLinkingFeedbackReader postgresLinkingFeedbackReader() {
+        return new PostgresLinkingFeedbackReader( hikariDataSource );
     }
 
     @Bean
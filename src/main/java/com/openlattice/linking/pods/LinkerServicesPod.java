@@ -47,10 +47,13 @@ import com.openlattice.edm.schemas.manager.HazelcastSchemaManager;
 import com.openlattice.edm.schemas.postgres.PostgresSchemaQueryService;
 import com.openlattice.ids.HazelcastLongIdService;
 import com.openlattice.linking.LinkingConfiguration;
+import com.openlattice.linking.LinkingFeedbackIndex;
 import com.openlattice.linking.LinkingLogService;
 import com.openlattice.linking.Matcher;
 import com.openlattice.linking.PostgresLinkingFeedbackService;
 import com.openlattice.linking.PostgresLinkingLogService;
+import com.openlattice.linking.matching.MatchingModels;
+import com.openlattice.linking.matching.PrefilterCascade;
 import com.openlattice.linking.matching.SocratesMatcher;
 import com.openlattice.linking.util.PersonProperties;
 import com.openlattice.notifications.sms.PhoneNumberService;
@@ -61,12 +64,8 @@ import com.openlattice.organizations.roles.SecurePrincipalsManager;
 import com.openlattice.postgres.external.ExternalDatabaseConnectionManager;
 import com.openlattice.scrunchie.search.ConductorElasticsearchImpl;
 import com.zaxxer.hikari.HikariDataSource;
-import org.deeplearning4j.nn.modelimport.keras.KerasModelImport;
-import org.deeplearning4j.nn.modelimport.keras.exceptions.InvalidKerasConfigurationException;
-import org.deeplearning4j.nn.modelimport.keras.exceptions.UnsupportedKerasConfigurationException;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
-import org.nd4j.linalg.io.ClassPathResource;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
@@ -260,17 +259,16 @@ public class LinkerServicesPod {
         return new SocratesMatcher(
                 ModelSerializer.restoreMultiLayerNetwork( modelStream ),
                 fqnToIdMap,
-                postgresLinkingFeedbackQueryService() );
+                linkingFeedbackIndex(),
+                prefilterCascade() );
     }
 
     @Profile( KERAS )
     @Bean
-    public Matcher kerasMatcher() throws IOException, InvalidKerasConfigurationException,
-            UnsupportedKerasConfigurationException {
-        String simpleMlp = new ClassPathResource( "model_2019-01-30.h5" ).getFile().getPath();
-        MultiLayerNetwork model = KerasModelImport.importKerasSequentialModelAndWeights( simpleMlp );
+    public Matcher kerasMatcher() {
+        MultiLayerNetwork model = MatchingModels.loadKerasModel();
         var fqnToIdMap = dataModelService().getFqnToIdMap( PersonProperties.FQNS );
-        return new SocratesMatcher( model, fqnToIdMap, postgresLinkingFeedbackQueryService() );
+        return new SocratesMatcher( model, fqnToIdMap, linkingFeedbackIndex(), prefilterCascade() );
     }
 
     @Bean
@@ -283,6 +281,20 @@ public class LinkerServicesPod {
         return new PostgresLinkingFeedbackService( hikariDataSource, hazelcastInstance );
     }
 
+    @Bean
+    public PrefilterCascade prefilterCascade() {
+        return PrefilterCascade.fromConfiguration(
+                linkingConfiguration.getPrefilters(),
+                linkingConfiguration.getBirthDateBandDays(),
+                dataModelService().getFqnToIdMap( PersonProperties.FQNS ),
+                metricRegistry );
+    }
+
+    @Bean
+    public LinkingFeedbackIndex linkingFeedbackIndex() {
+        return new LinkingFeedbackIndex( () -> postgresLinkingFeedbackQueryService().getLinkingFeedback() );
+    }
+
     @PostConstruct
     void initPrincipals() {
         Principals.init( principalService(), hazelcastInstance );
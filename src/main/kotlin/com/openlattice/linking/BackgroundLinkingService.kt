@@ -21,30 +21,32 @@
 
 package com.openlattice.linking
 
-import com.google.common.base.Stopwatch
-import com.google.common.collect.Sets
+import com.codahale.metrics.MetricRegistry
 import com.google.common.util.concurrent.ListeningExecutorService
 import com.hazelcast.core.HazelcastInstance
 import com.hazelcast.query.Predicates
 import com.openlattice.data.EntityDataKey
-import com.openlattice.data.EntityKeyIdService
 import com.openlattice.edm.EntitySet
 import com.openlattice.edm.set.EntitySetFlag
 import com.openlattice.hazelcast.HazelcastMap
-import com.openlattice.hazelcast.HazelcastQueue
+import com.openlattice.linking.scheduling.LinkerPartitions
+import com.openlattice.linking.scheduling.WeightedFairScheduler
 import com.openlattice.postgres.mapstores.EntitySetMapstore
 import org.slf4j.LoggerFactory
 import org.springframework.scheduling.annotation.Scheduled
 import org.springframework.stereotype.Component
 import java.time.Instant
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
 
 internal const val REFRESH_PROPERTY_TYPES_INTERVAL_MILLIS = 30000L
-internal const val LINKING_BATCH_TIMEOUT_MILLIS = 120000L
+internal const val LINKING_LEASE_MILLIS = 30_000L
+internal const val LEASE_RENEWAL_RATE = 10_000L
 internal const val MINIMUM_SCORE = 0.75
 internal const val LINKING_RATE = 300_000L
+internal const val RECOVERY_RATE = 30_000L
 
 /**
  * Performs realtime linking of individuals as they are integrated ino the system.
@@ -53,14 +55,15 @@ internal const val LINKING_RATE = 300_000L
 class BackgroundLinkingService(
         private val executor: ListeningExecutorService,
         hazelcastInstance: HazelcastInstance,
-        private val blocker: Blocker,
-        private val matcher: Matcher,
-        private val ids: EntityKeyIdService,
-        private val loader: DataLoader,
+        private val linker: EntityLinker,
         private val lqs: LinkingQueryService,
-        private val linkingFeedbackService: PostgresLinkingFeedbackService,
         private val linkableTypes: Set<UUID>,
-        private val configuration: LinkingConfiguration
+        private val configuration: LinkingConfiguration,
+        metricRegistry: MetricRegistry,
+        private val progress: LinkingProgressTracker,
+        private val partitions: LinkerPartitions,
+        private val journal: LinkingJournal,
+        private val warmup: LinkingWarmup
 ) {
     companion object {
         private val logger = LoggerFactory.getLogger(BackgroundLinkingService::class.java)
@@ -68,12 +71,64 @@ class BackgroundLinkingService(
 
     private val entitySets = HazelcastMap.ENTITY_SETS.getMap(hazelcastInstance)
     private val linkingLocks = HazelcastMap.LINKING_LOCKS.getMap(hazelcastInstance)
-    private val candidates = HazelcastQueue.LINKING_CANDIDATES.getQueue( hazelcastInstance )
     private val priorityEntitySets = configuration.whitelist.orElseGet { setOf() }
+    private val candidates = WeightedFairScheduler(
+            { entitySetId ->
+                configuration.entitySetWeights[entitySetId]
+                        ?: if (priorityEntitySets.contains(entitySetId)) configuration.priorityWeight else 1.0
+            },
+            configuration.maxCandidateWaitMillis,
+            metricRegistry,
+            coalesceWindowMillis = configuration.coalesceWindowMillis
+    )
+
+    /**
+     * Leases held by this node for candidates it has queued or is linking, mapped to the expiration that was last
+     * written to [linkingLocks].
+     */
+    private val leases = ConcurrentHashMap<EntityDataKey, Long>()
+
+    private val leaseRenewals = metricRegistry.counter(
+            MetricRegistry.name(BackgroundLinkingService::class.java, "leases", "renewed")
+    )
+    private val leasesLost = metricRegistry.counter(
+            MetricRegistry.name(BackgroundLinkingService::class.java, "leases", "lost")
+    )
+    private val leasesExpired = metricRegistry.counter(
+            MetricRegistry.name(BackgroundLinkingService::class.java, "leases", "expired")
+    )
+    private val stolenCandidates = metricRegistry.counter(
+            MetricRegistry.name(BackgroundLinkingService::class.java, "candidates", "stolen")
+    )
+    private val releasedCandidates = metricRegistry.counter(
+            MetricRegistry.name(BackgroundLinkingService::class.java, "candidates", "released")
+    )
+    private val recoveredCandidates = metricRegistry.counter(
+            MetricRegistry.name(BackgroundLinkingService::class.java, "candidates", "recovered")
+    )
+
+    /**
+     * Checkpoints of recovered candidates that are queued on this node.
+     */
+    private val checkpoints = ConcurrentHashMap<EntityDataKey, LinkingCheckpoint>()
+
+    init {
+        executor.execute(warmup::run)
+        if (configuration.partitionAffinity) {
+            partitions.onMembershipChange(::rebalance)
+        }
+    }
 
     @Suppress("UNUSED")
     @Scheduled(fixedRate = LINKING_RATE)
     fun enqueue() {
+        if (!configuration.backgroundLinkingEnabled) {
+            return
+        }
+        if (!warmup.isReady()) {
+            logger.info("Not queueing linking candidates until linking is warmed up.")
+            return
+        }
         try {
             val filteredLinkableEntitySetIds = entitySets.keySet(
                     Predicates.and(
@@ -92,9 +147,11 @@ class BackgroundLinkingService(
 
             //TODO: Switch to unlimited entity sets
             (priority + rest)
+                    .filter { esid -> candidates.depth(esid) < 2 * configuration.loadSize }
                     .forEach { esid ->
                         logger.debug("Starting to queue linking candidates from entity set {}", esid)
-                        val forLinking = lqs.getEntitiesNeedingLinking(esid, 2 * configuration.loadSize)
+                        val forLinking = selectOwned(esid)
+                                .filter { !candidates.isPending(it) }
                                 .filter {
                                     val expiration = lockOrGetExpiration(it)
                                     logger.debug(
@@ -105,7 +162,8 @@ class BackgroundLinkingService(
                                     )
                                     if (expiration != null && Instant.now().toEpochMilli() >= expiration) {
                                         logger.info("Refreshing expiration for {}", it)
-                                        //Assume original lock holder died, probably somewhat unsafe
+                                        //Live holders renew their lease, so an expired lease means the holder died.
+                                        leasesExpired.inc()
                                         refreshExpiration(it)
                                         true
                                     } else expiration == null
@@ -113,8 +171,10 @@ class BackgroundLinkingService(
                         if (forLinking.isNotEmpty()) {
                             logger.info("Entities needing linking: {}", forLinking.size)
                             logger.debug("Entities needing linking: {}", forLinking)
+                            //Cached blocks returning entities from this entity set may predate their (re)indexing.
+                            linker.invalidateBlocks(setOf(esid))
                         }
-                        candidates.addAll(forLinking)
+                        progress.enqueued(forLinking.filter(candidates::offer))
                         logger.debug( "Queued entities needing linking {}", forLinking)
                     }
         } catch (ex: Exception) {
@@ -122,23 +182,113 @@ class BackgroundLinkingService(
         }
     }
 
+    /**
+     * Selects the candidates needing linking in an entity set that this node should queue. With partition affinity,
+     * each node queues the candidates in the partitions it owns and only takes candidates owned by other nodes when it
+     * is idle. Other nodes keep their candidates through the lease held in [linkingLocks].
+     */
+    private fun selectOwned(entitySetId: UUID): List<EntityDataKey> {
+        val limit = 2 * configuration.loadSize
+        if (!configuration.partitionAffinity) {
+            return lqs.getEntitiesNeedingLinking(entitySetId, limit).toList()
+        }
+
+        val (allOwned, foreign) = lqs
+                .getEntitiesNeedingLinking(entitySetId, limit * partitions.getNodeCount())
+                .partition(partitions::isLocal)
+        //Skewed partitions can leave this node owning more than its share of the entities read.
+        val owned = allOwned.take(limit)
+        if (candidates.size() + owned.size >= configuration.parallelism) {
+            return owned
+        }
+
+        val stolen = foreign.take(limit - owned.size)
+        stolenCandidates.inc(stolen.size.toLong())
+        return owned + stolen
+    }
+
+    /**
+     * Releases queued candidates whose partitions moved to another node after the linker nodes changed and queues the
+     * candidates of partitions this node took over.
+     */
+    private fun rebalance() {
+        val released = candidates.removeIf { !partitions.isLocal(it) }
+        released.forEach { candidate ->
+            checkpoints.remove(candidate)
+            progress.dequeued(candidate)
+            unlock(candidate)
+        }
+        releasedCandidates.inc(released.size.toLong())
+        logger.info(
+                "Released {} queued candidates after linker nodes changed to {} nodes.",
+                released.size,
+                partitions.getNodeCount()
+        )
+        executor.execute {
+            recover()
+            enqueue()
+        }
+    }
+
+    /**
+     * Takes over candidates that were being linked by nodes that are no longer alive, breaking their leases instead of
+     * waiting for them to expire. Initialized candidates resume from their initialization scores, while candidates that
+     * only started are linked from scratch, which restores a neighborhood that was already deleted.
+     */
+    @Suppress("UNUSED")
+    @Scheduled(fixedRate = RECOVERY_RATE)
+    fun recover() {
+        if (!configuration.backgroundLinkingEnabled || !warmup.isReady()) {
+            return
+        }
+        try {
+            val liveNodes = partitions.getNodes()
+            journal.getOrphaned(liveNodes, 2 * configuration.loadSize)
+                    .filter { !configuration.partitionAffinity || partitions.isLocal(it) }
+                    .forEach { candidate ->
+                        val checkpoint = journal.claim(candidate, liveNodes) ?: return@forEach
+                        logger.info("Recovering linking candidate {} at stage {}", candidate, checkpoint.stage)
+                        linkingLocks.delete(candidate)
+                        if (lockOrGetExpiration(candidate) == null) {
+                            checkpoints[candidate] = checkpoint
+                            if (candidates.offer(candidate)) {
+                                progress.enqueued(listOf(candidate))
+                            }
+                            recoveredCandidates.inc()
+                        }
+                    }
+        } catch (ex: Exception) {
+            logger.error("Unable to recover linking candidates of nodes that died.", ex)
+        }
+    }
+
     private val limiter = Semaphore(configuration.parallelism)
 
     @Suppress("UNUSED")
     private val linkingWorker = if (isLinkingEnabled()) executor.submit {
+        warmup.awaitReady()
+        //Candidates are only queued once warmed up, so queue the first load right away instead of at the next rate.
+        enqueue()
         while (true) {
             try {
+                //The scheduler hands out each candidate once until it is completed.
                 generateSequence(candidates::take)
                         .map { candidate ->
+                            acquireLease(candidate)
                             limiter.acquire()
                             executor.submit {
                                 try {
                                     logger.info("Linking {}", candidate)
-                                    link(candidate)
+                                    linker.link(candidate, checkpoints.remove(candidate))
+                                    progress.linked(candidate)
                                 } catch (ex: Exception) {
                                     logger.error("Unable to link $candidate. ", ex)
                                 } finally {
-                                    unlock(candidate)
+                                    //Candidates requested again while in flight are requeued without releasing the lease.
+                                    if (!candidates.complete(candidate)) {
+                                        progress.dequeued(candidate)
+                                        unlock(candidate)
+                                    }
                                     limiter.release()
                                 }
                             }
@@ -152,144 +302,135 @@ class BackgroundLinkingService(
 
 
     /**
-     * Links a candidate entity to other matching entities.
+     * Requests that entities be linked against their latest data as soon as possible. Candidates already queued on
+     * this node are coalesced, candidates being linked on this node are linked again once after they complete and
+     * other candidates are queued on this node if they are not locked by another node.
      *
-     * 1) Uses the results of blocking to identify candidate clusters
-     * 2) Insert the results of the match scores
-     * 3) Update the linked entities table.
-     *
-     * @param candidate The data key for the entity to perform linking upon.
+     * Callers are still expected to mark the entities as needing linking, so that they are picked up by the node
+     * holding them. Nodes with background linking disabled leave them to be picked up by nodes that have it enabled.
      */
-    private fun link(candidate: EntityDataKey) {
-        clearNeighborhoods(candidate)
-        // if we have positive feedbacks on entity, we use its linking id and match them together
-        if (linkingFeedbackService.hasFeedbacks(FeedbackType.Positive, candidate)) {
-            try {
-                // only linking id of entity should remain, since we cleared neighborhood, except the ones
-                // with positive feedback
-                val clusters = lqs.getClustersForIds(setOf(candidate))
-                val cluster = clusters.entries.first()
-                val clusterId = cluster.key
-                lateinit var scoredCluster: ScoredCluster
-
-                lqs.lockClustersForUpdates(setOf(clusterId)).use { conn ->
-                    scoredCluster = cluster(candidate, cluster, ::completeLinkCluster)
-                    if (scoredCluster.score <= MINIMUM_SCORE) {
-                        logger.error(
-                                "Recalculated score {} of linking id {} with positives feedbacks did not pass minimum score {}",
-                                scoredCluster.score,
-                                cluster.key,
-                                MINIMUM_SCORE
-                        )
-                    }
-                    lqs.insertMatchScores(conn, clusterId, scoredCluster.cluster)
-                }
-                insertMatches(clusterId, candidate, scoredCluster.cluster)
-            } catch (ex: Exception) {
-                logger.error("An error occurred while performing linking.", ex)
-                throw IllegalStateException("Error occured while performing linking.", ex)
+    fun requestLinking(dataKeys: Collection<EntityDataKey>) {
+        if (!configuration.backgroundLinkingEnabled) {
+            return
+        }
+        dataKeys.forEach { candidate ->
+            if (candidates.requestRelink(candidate) || lockOrGetExpiration(candidate) != null) {
+                return@forEach
             }
-        } else {
-            // Run standard blocking + clustering
-            val sw = Stopwatch.createStarted()
-            val initialBlock = blocker.block(candidate.entitySetId, candidate.entityKeyId)
-
-            logger.info(
-                    "Blocking ({}, {}) took {} ms.",
-                    candidate.entitySetId,
-                    candidate.entityKeyId,
-                    sw.elapsed(TimeUnit.MILLISECONDS)
-            )
-
-            //block contains element being blocked
-            val elem = initialBlock.second.getValue(candidate)
+            if (candidates.offer(candidate)) {
+                progress.enqueued(listOf(candidate))
+            } else {
+                unlock(candidate)
+            }
+        }
+    }
 
-            // initialize
-            sw.reset().start()
-            logger.info("Initializing matching for block {}", candidate)
-            val initializedBlock = matcher.initialize(initialBlock)
-            logger.info("Initialization took {} ms", sw.elapsed(TimeUnit.MILLISECONDS))
-            val dataKeys = collectKeys(initializedBlock.second)
+    /**
+     * Links a candidate on the caller's thread, if linking has warmed up and the candidate is not queued or being
+     * linked already. The link runs to completion regardless of how long it takes, so callers with a latency budget
+     * can only report whether it was exceeded.
+     *
+     * @return The linking id assigned to the candidate or null if linking is still warming up or the candidate is
+     * locked by another link.
+     */
+    fun linkNow(candidate: EntityDataKey): UUID? {
+        if (!warmup.isReady() || !candidates.claim(candidate)) {
+            return null
+        }
+        if (lockOrGetExpiration(candidate) != null) {
+            candidates.complete(candidate)
+            return null
+        }
+        try {
+            val linkingId = linker.link(candidate)
+            progress.linked(candidate)
+            return linkingId
+        } finally {
+            //Candidates requested again while linked are queued for the worker without releasing the lease.
+            if (candidates.complete(candidate)) {
+                progress.enqueued(listOf(candidate))
+            } else {
+                unlock(candidate)
+            }
+        }
+    }
 
-            //Decision that needs to be made is whether to start new cluster or merge into existing cluster.
-            //No locks are required since any items that block to this element will be skipped.
+    /**
+     * Renews the leases of all candidates being linked by this node or queued for its linking worker, so that links
+     * that outlive a single lease period are not mistaken for work abandoned by a dead node and re-enqueued. Leases of
+     * candidates that no worker will link are released, so that another node can pick them up.
+     */
+    @Suppress("UNUSED")
+    @Scheduled(fixedRate = LEASE_RENEWAL_RATE)
+    fun renewLeases() {
+        leases.keys.forEach { candidate ->
             try {
-                val (linkingId, scores) = lqs.lockClustersDoWorkAndCommit( candidate, dataKeys) { clusters ->
-                    val maybeBestCluster = clusters
-                            .asSequence()
-                            .map { cluster -> cluster(candidate, cluster, ::completeLinkCluster) }
-                            .filter { it.score > MINIMUM_SCORE }
-                            .maxBy { it.score }
-
-                    if ( maybeBestCluster != null ) {
-                        return@lockClustersDoWorkAndCommit Triple(maybeBestCluster.clusterId, maybeBestCluster.cluster, false)
+                linkingLocks.lock(candidate)
+                val expiration = leases[candidate] ?: return@forEach
+                if (!willBeLinked(candidate)) {
+                    logger.warn("Releasing lease on {} as no linking worker will link it.", candidate)
+                    if (candidates.removeIf { it == candidate }.isNotEmpty()) {
+                        progress.dequeued(candidate)
+                    }
+                    leases.remove(candidate, expiration)
+                    linkingLocks.remove(candidate, expiration)
+                } else if (linkingLocks[candidate] == expiration) {
+                    val renewed = Instant.now().plusMillis(LINKING_LEASE_MILLIS).toEpochMilli()
+                    linkingLocks.set(candidate, renewed, LINKING_LEASE_MILLIS, TimeUnit.MILLISECONDS)
+                    leases.replace(candidate, expiration, renewed)
+                    leaseRenewals.inc()
+                } else {
+                    leases.remove(candidate, expiration)
+                    if (candidates.isInFlight(candidate)) {
+                        //Lease expired before it could be renewed and may have been picked up by another node.
+                        leasesLost.inc()
+                        logger.warn("Lost lease on linking candidate {}", candidate)
                     }
-                    val linkingId = ids.reserveLinkingIds(1).first()
-                    val block = candidate to mapOf(candidate to elem)
-                    val cluster = matcher.match(block).second
-                    //TODO: When creating new cluster do we really need to re-match or can we assume score of 1.0?
-                    return@lockClustersDoWorkAndCommit Triple(linkingId, cluster, true)
                 }
-                insertMatches( linkingId, candidate, scores )
             } catch (ex: Exception) {
-                logger.error("An error occurred while performing linking.", ex)
-                throw IllegalStateException("Error occured while performing linking.", ex)
+                logger.error("Unable to renew lease for linking candidate {}", candidate, ex)
+            } finally {
+                linkingLocks.unlock(candidate)
             }
         }
     }
 
-    private fun cluster(
-            blockKey: EntityDataKey,
-            identifiedCluster: Map.Entry<UUID, Map<EntityDataKey, Map<EntityDataKey, Double>>>,
-            clusteringStrategy: (Map<EntityDataKey, Map<EntityDataKey, Double>>) -> Double
-    ): ScoredCluster {
-        val block = blockKey to loader.getEntities(collectKeys(identifiedCluster.value) + blockKey)
-        //At some point, we may want to skip recomputing matches for existing cluster elements as an optimization.
-        //Since we're freshly loading entities it's not too bad to recompute everything.
-        val matchedBlock = matcher.match(block)
-        val matchedCluster = matchedBlock.second
-        val score = clusteringStrategy(matchedCluster)
-        return ScoredCluster(identifiedCluster.key, matchedCluster, score)
-    }
-
-    private fun <T> collectKeys(m: Map<EntityDataKey, Map<EntityDataKey, T>>): Set<EntityDataKey> {
-        return m.keys + m.values.flatMap { it.keys }
-    }
-
-    private fun clearNeighborhoods(candidate: EntityDataKey) {
-        logger.debug("Starting neighborhood cleanup of {}", candidate)
-        val positiveFeedbacks = linkingFeedbackService.getLinkingFeedbackEntityKeyPairs(
-                FeedbackType.Positive, candidate
-        )
-
-        val clearedCount = lqs.deleteNeighborhood(candidate, positiveFeedbacks)
-        logger.debug("Cleared {} neighbors from neighborhood of {}", clearedCount, candidate)
-    }
-
-    private fun insertMatches(
-            linkingId: UUID,
-            newMember: EntityDataKey,
-            scores: Map<EntityDataKey, Map<EntityDataKey, Double>>
-    ) {
-        val scoresAsEsidToEkids = (collectKeys(scores) + newMember)
-                .groupBy { edk -> edk.entitySetId }
-                .mapValues { (_, edks) ->
-
-                    Sets.newLinkedHashSet(edks.map { it.entityKeyId })
-                }
-        lqs.updateLinkingInformation( linkingId, newMember, scoresAsEsidToEkids )
+    /**
+     * @return True if the candidate is being linked on this node or is queued for a linking worker that is running.
+     */
+    private fun willBeLinked(candidate: EntityDataKey): Boolean {
+        return candidates.isInFlight(candidate) || (linkingWorker?.isDone == false && candidates.isPending(candidate))
     }
 
     /**
      * @return Null if locked, expiration in millis otherwise.
      */
     private fun lockOrGetExpiration(candidate: EntityDataKey): Long? {
-        return linkingLocks.putIfAbsent(
+        val expiration = Instant.now().plusMillis(LINKING_LEASE_MILLIS).toEpochMilli()
+        val existing = linkingLocks.putIfAbsent(
                 candidate,
-                Instant.now().plusMillis(LINKING_BATCH_TIMEOUT_MILLIS).toEpochMilli(),
-                LINKING_BATCH_TIMEOUT_MILLIS,
+                expiration,
+                LINKING_LEASE_MILLIS,
                 TimeUnit.MILLISECONDS
         )
+        if (existing == null) {
+            leases[candidate] = expiration
+        }
+        return existing
+    }
+
+    /**
+     * Takes over the lease of a candidate that is about to be linked by this node.
+     */
+    private fun acquireLease(candidate: EntityDataKey) {
+        try {
+            linkingLocks.lock(candidate)
+            val expiration = Instant.now().plusMillis(LINKING_LEASE_MILLIS).toEpochMilli()
+            linkingLocks.set(candidate, expiration, LINKING_LEASE_MILLIS, TimeUnit.MILLISECONDS)
+            leases[candidate] = expiration
+        } finally {
+            linkingLocks.unlock(candidate)
+        }
     }
 
     /**
@@ -299,12 +440,9 @@ class BackgroundLinkingService(
         try {
             linkingLocks.lock(candidate)
 
-            linkingLocks.putIfAbsent(
-                    candidate,
-                    Instant.now().plusMillis(LINKING_BATCH_TIMEOUT_MILLIS).toEpochMilli(),
-                    LINKING_BATCH_TIMEOUT_MILLIS,
-                    TimeUnit.MILLISECONDS
-            )
+            val expiration = Instant.now().plusMillis(LINKING_LEASE_MILLIS).toEpochMilli()
+            linkingLocks.set(candidate, expiration, LINKING_LEASE_MILLIS, TimeUnit.MILLISECONDS)
+            leases[candidate] = expiration
         } finally {
             linkingLocks.unlock(candidate)
         }
@@ -320,20 +458,11 @@ class BackgroundLinkingService(
     }
 
     private fun unlock(candidate: EntityDataKey) {
-        linkingLocks.delete(candidate)
-    }
-}
-
-data class ScoredCluster(
-        val clusterId: UUID,
-        val cluster: Map<EntityDataKey, Map<EntityDataKey, Double>>,
-        val score: Double
-) : Comparable<Double> {
-    override fun compareTo(other: Double): Int {
-        return score.compareTo(other)
+        val expiration = leases.remove(candidate)
+        //Only release the lock if it is still the lease this node holds.
+        if (expiration != null && !linkingLocks.remove(candidate, expiration)) {
+            leasesLost.inc()
+            logger.warn("Lease on {} was taken over by another node while linking.", candidate)
+        }
     }
 }
-
-private fun completeLinkCluster(matchedCluster: Map<EntityDataKey, Map<EntityDataKey, Double>>): Double {
-    return matchedCluster.values.flatMap { it.values }.min() ?: 0.0
-}
\ No newline at end of file
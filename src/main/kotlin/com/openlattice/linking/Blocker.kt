@@ -50,7 +50,8 @@ interface Blocker {
      * Retrieves the top 50 matches per entity set. This can be a large number of search results 1000 * # entity sets.
      *
      * @param entityDataKey The entity data key id of the entity upon which to perform blocking.
-     * @return A block of potentially matching objects as a mapping from entity data keys to entity properties
+     * @return A block of potentially matching objects as a mapping from entity data keys to entity properties, which
+     * always contains the entity itself
      *
      */
     fun block(
@@ -59,4 +60,34 @@ interface Blocker {
             top: Int = 50
     ): Pair<EntityDataKey,Map<EntityDataKey, Map<UUID, Set<Any>>>>
 
+    /**
+     * Starts blocking on an entity and returns a block whose entities are handed over as they are loaded. Blockers
+     * that cannot load incrementally return a block that has already been loaded.
+     *
+     * @param entityDataKey The entity data key id of the entity upon which to perform blocking.
+     * @return A block that must be closed once it has been consumed.
+     */
+    fun streamBlock(
+            entityDataKey: EntityDataKey,
+            entity: Optional<Map<UUID, Set<Any>>> = Optional.empty(),
+            top: Int = 50
+    ): StreamingBlock {
+        return StreamingBlock.of(block(entityDataKey, entity, top))
+    }
+
+    /**
+     * Records which entities of a block matched its candidate, for blockers that adapt to where matches are found.
+     */
+    fun recordMatches(
+            block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>,
+            matches: Set<EntityDataKey>
+    ) {
+    }
+
+    /**
+     * Discards any cached state involving [entitySetIds], after entities in them have been indexed.
+     */
+    fun invalidate(entitySetIds: Set<UUID>) {
+    }
+
 }
\ No newline at end of file
@@ -22,14 +22,14 @@
 package com.openlattice.linking
 
 import com.openlattice.data.EntityDataKey
-import com.openlattice.postgres.streams.BasePostgresIterable
 import java.util.*
+import java.util.stream.Stream
 
 /**
- *
+ * Loads entities for linking as compact [LinkingEntity] records.
  */
 interface DataLoader {
-    fun getEntity(dataKey: EntityDataKey): Map<UUID, Set<Any>>
-    fun getEntities(dataKeys: Set<EntityDataKey>): Map<EntityDataKey, Map<UUID, Set<Any>>>
-    fun getEntityStream(entitySetId: UUID, entityKeyIds: Set<UUID>): BasePostgresIterable<Pair<UUID, Map<UUID, Set<Any>>>>
+    fun getEntity(dataKey: EntityDataKey): LinkingEntity
+    fun getEntities(dataKeys: Set<EntityDataKey>): Map<EntityDataKey, LinkingEntity>
+    fun getEntityStream(entitySetId: UUID, entityKeyIds: Set<UUID>): Stream<Pair<UUID, LinkingEntity>>
 }
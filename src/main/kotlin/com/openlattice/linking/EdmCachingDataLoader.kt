@@ -27,13 +27,15 @@ import com.hazelcast.query.Predicates
 import com.openlattice.data.EntityDataKey
 import com.openlattice.data.storage.PostgresEntityDataQueryService
 import com.openlattice.hazelcast.HazelcastMap
+import com.openlattice.linking.monitoring.LoadEntitiesEvent
 import com.openlattice.linking.util.PersonProperties
 import com.openlattice.postgres.mapstores.EntityTypeMapstore
-import com.openlattice.postgres.streams.BasePostgresIterable
 import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
 import java.util.UUID
 import java.util.Optional
 import java.util.concurrent.TimeUnit
+import java.util.stream.Stream
+import kotlin.streams.asSequence
 
 /**
  *
@@ -57,27 +59,56 @@ class EdmCachingDataLoader(
             TimeUnit.MILLISECONDS
     )
 
-    override fun getEntity(dataKey: EntityDataKey): Map<UUID, Set<Any>> {
+    @Volatile
+    private var schema = LinkingSchema(listOf())
+
+    override fun getEntity(dataKey: EntityDataKey): LinkingEntity {
         return getEntities(setOf(dataKey)).entries.first().value
     }
 
-    override fun getEntities(dataKeys: Set<EntityDataKey>): Map<EntityDataKey, Map<UUID, Set<Any>>> {
-        return dataKeys
+    override fun getEntities(dataKeys: Set<EntityDataKey>): Map<EntityDataKey, LinkingEntity> {
+        val event = LoadEntitiesEvent()
+        event.begin()
+        val entitySets = dataKeys
                 .groupBy({ it.entitySetId }, { it.entityKeyId })
                 .mapValues { it.value.toSet() }
+        val entities = entitySets
                 .flatMap { edkp ->
-                    getEntityStream(edkp.key, edkp.value).map { EntityDataKey(edkp.key, it.first) to it.second}
+                    getEntityStream(edkp.key, edkp.value).asSequence()
+                            .map { EntityDataKey(edkp.key, it.first) to it.second }
+                            .toList()
                 }
                 .toMap()
+
+        event.end()
+        if (event.shouldCommit()) {
+            event.entityCount = entities.size
+            event.entitySetCount = entitySets.size
+            event.commit()
+        }
+        return entities
     }
 
     override fun getEntityStream(
             entitySetId: UUID, entityKeyIds: Set<UUID>
-    ): BasePostgresIterable<Pair<UUID, Map<UUID, Set<Any>>>> {
+    ): Stream<Pair<UUID, LinkingEntity>> {
+        val authorizedPropertyTypes = authorizedPropertyTypesCache.get()
+        val schema = getSchema(authorizedPropertyTypes.keys)
         return dataQueryService.getEntitySetWithPropertyTypeIdsIterable(
                 mapOf(entitySetId to Optional.of(entityKeyIds)),
-                mapOf(entitySetId to authorizedPropertyTypesCache.get())
-        )
+                mapOf(entitySetId to authorizedPropertyTypes)
+        ).stream().map { it.first to schema.entity(it.second) }
+    }
+
+    /**
+     * Entities share a schema for as long as the property types of the person entity type stay the same.
+     */
+    private fun getSchema(propertyTypeIds: Set<UUID>): LinkingSchema {
+        val current = schema
+        if (current.propertyTypeIds.size == propertyTypeIds.size && propertyTypeIds.containsAll(current.propertyTypeIds)) {
+            return current
+        }
+        return LinkingSchema(propertyTypeIds).also { schema = it }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.google.common.base.Stopwatch
+import com.google.common.collect.Sets
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.EntityKeyIdService
+import com.openlattice.linking.blocking.BlockBudget
+import com.openlattice.linking.clustering.ClusterSummaries
+import com.openlattice.linking.monitoring.ClusterCommitEvent
+import com.openlattice.linking.monitoring.LinkEvent
+import com.openlattice.linking.replay.BlockRecorder
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.AbstractMap.SimpleImmutableEntry
+import java.util.concurrent.TimeUnit
+
+/**
+ * The number of cluster members scored against a candidate at a time while looking for a reason to reject the cluster.
+ */
+internal const val CLUSTER_SCORING_BATCH_SIZE = 8
+
+/**
+ * Performs the blocking, matching and clustering steps of linking a single candidate.
+ *
+ * Callers are responsible for making sure that a candidate is not linked concurrently by more than one caller.
+ */
+class EntityLinker(
+        private val blocker: Blocker,
+        private val matcher: Matcher,
+        private val ids: EntityKeyIdService,
+        private val loader: DataLoader,
+        private val lqs: LinkingQueryService,
+        private val linkingFeedbackService: PostgresLinkingFeedbackService,
+        private val feedbackIndex: LinkingFeedbackIndex,
+        private val blockBudget: BlockBudget,
+        private val clusterSummaries: ClusterSummaries,
+        private val journal: LinkingJournal,
+        private val blockRecorder: BlockRecorder
+) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(EntityLinker::class.java)
+    }
+
+    /**
+     * Links a candidate entity to other matching entities.
+     *
+     * 1) Uses the results of blocking to identify candidate clusters
+     * 2) Insert the results of the match scores
+     * 3) Update the linked entities table.
+     *
+     * Each stage is recorded in the [LinkingJournal], so that another node can pick up where linking left off if this
+     * node dies. The journal is cleared once linking completes or fails.
+     *
+     * @param candidate The data key for the entity to perform linking upon.
+     * @param checkpoint The checkpoint recorded by a node that died while linking the candidate, if any. Linking resumes
+     * from its initialization scores if it has them.
+     * @return The linking id the candidate was assigned.
+     */
+    fun link(candidate: EntityDataKey, checkpoint: LinkingCheckpoint? = null): UUID {
+        val event = LinkEvent()
+        event.begin()
+        val linkingId = try {
+            link(candidate, checkpoint, event)
+        } finally {
+            //Candidates that fail are still marked as needing linking, so they are retried like any other candidate.
+            journal.complete(candidate)
+        }
+        event.end()
+        if (event.shouldCommit()) {
+            event.candidate(candidate)
+            event.linkingId = linkingId.toString()
+            event.resumed = checkpoint != null
+            event.commit()
+        }
+        return linkingId
+    }
+
+    private fun link(candidate: EntityDataKey, checkpoint: LinkingCheckpoint?, event: LinkEvent): UUID {
+        // recorded before the neighborhood is deleted, so that the candidate is recovered if this node dies while or
+        // after deleting it. A resumed candidate keeps its initialization scores.
+        val resumed = checkpoint?.takeIf { it.stage == LinkingStage.INITIALIZED }
+        journal.record(candidate, resumed?.stage ?: LinkingStage.STARTED, resumed?.initialScores ?: mapOf())
+        val positiveFeedbacks = clearNeighborhoods(candidate)
+        // if we have positive feedbacks on entity, we use its linking id and match them together
+        if (positiveFeedbacks.isNotEmpty()) {
+            try {
+                // only linking id of entity should remain, since we cleared neighborhood, except the ones
+                // with positive feedback
+                val clusters = lqs.getClustersForIds(setOf(candidate))
+                val cluster = clusters.entries.first()
+                val clusterId = cluster.key
+                lateinit var scoredCluster: ScoredCluster
+
+                val commitEvent = ClusterCommitEvent()
+                commitEvent.begin()
+                lqs.lockClustersForUpdates(setOf(clusterId)).use { conn ->
+                    scoredCluster = cluster(candidate, cluster, ::completeLinkCluster)
+                    if (scoredCluster.score <= MINIMUM_SCORE) {
+                        logger.error(
+                                "Recalculated score {} of linking id {} with positives feedbacks did not pass minimum score {}",
+                                scoredCluster.score,
+                                cluster.key,
+                                MINIMUM_SCORE
+                        )
+                    }
+                    lqs.insertMatchScores(conn, clusterId, scoredCluster.cluster)
+                }
+                commit(commitEvent, candidate, 1, false)
+                event.clusterCount = 1
+                insertMatches(clusterId, candidate, scoredCluster.cluster)
+                return clusterId
+            } catch (ex: Exception) {
+                logger.error("An error occurred while performing linking.", ex)
+                throw IllegalStateException("Error occured while performing linking.", ex)
+            }
+        } else {
+            // candidates recovered before they were initialized are linked from scratch
+            val (elem, initialScores) = if (resumed != null) {
+                logger.info("Resuming linking of {} from its initialization scores", candidate)
+                loader.getEntity(candidate) to resumed.initialScores
+            } else {
+                initialize(candidate)
+            }
+            val dataKeys = initialScores.keys + candidate
+            event.blockSize = dataKeys.size
+
+            //Decision that needs to be made is whether to start new cluster or merge into existing cluster.
+            //No locks are required since any items that block to this element will be skipped.
+            try {
+                var newCluster = false
+                val commitEvent = ClusterCommitEvent()
+                commitEvent.begin()
+                val (linkingId, scores) = lqs.lockClustersDoWorkAndCommit( candidate, dataKeys) { clusters ->
+                    event.clusterCount = clusters.size
+                    val maybeBestCluster = selectCluster(candidate, elem, initialScores, clusters)
+
+                    if ( maybeBestCluster != null ) {
+                        val clusterId = maybeBestCluster.clusterId
+                        val merged = mergeCandidateScores(
+                                candidate,
+                                clusters.getValue(clusterId),
+                                maybeBestCluster.cluster
+                        )
+                        return@lockClustersDoWorkAndCommit Triple(clusterId, merged, false)
+                    }
+                    val linkingId = ids.reserveLinkingIds(1).first()
+                    val block = candidate to mapOf(candidate to elem)
+                    val cluster = matcher.match(block).second
+                    //TODO: When creating new cluster do we really need to re-match or can we assume score of 1.0?
+                    newCluster = true
+                    return@lockClustersDoWorkAndCommit Triple(linkingId, cluster, true)
+                }
+                commit(commitEvent, candidate, event.clusterCount, newCluster)
+                insertMatches( linkingId, candidate, scores )
+                clusterSummaries.recordMember(linkingId, candidate, scores)
+                return linkingId
+            } catch (ex: Exception) {
+                logger.error("An error occurred while performing linking.", ex)
+                throw IllegalStateException("Error occured while performing linking.", ex)
+            }
+        }
+    }
+
+    /**
+     * Blocks and initializes a candidate, initializing the block while it loads, and records the initialization scores
+     * in the journal.
+     *
+     * @return The properties of the candidate and its initialization scores against the entities in its block.
+     */
+    private fun initialize(candidate: EntityDataKey): Pair<Map<UUID, Set<Any>>, Map<EntityDataKey, Double>> {
+        val sw = Stopwatch.createStarted()
+        val (initialBlock, initializedBlock) = blocker.streamBlock(candidate).use { streamingBlock ->
+            logger.info("Initializing matching for block {}", candidate)
+            val initializedBlock = matcher.initialize(streamingBlock)
+            streamingBlock.toBlock() to initializedBlock
+        }
+
+        logger.info(
+                "Blocking and initialization of ({}, {}) took {} ms.",
+                candidate.entitySetId,
+                candidate.entityKeyId,
+                sw.elapsed(TimeUnit.MILLISECONDS)
+        )
+
+        val initialScores = initializedBlock.second[candidate] ?: mapOf<EntityDataKey, Double>()
+        blocker.recordMatches(initialBlock, initialScores.keys)
+        blockRecorder.record(initialBlock)
+        journal.record(candidate, LinkingStage.INITIALIZED, initialScores)
+
+        //block contains element being blocked
+        return initialBlock.second.getValue(candidate) to initialScores
+    }
+
+    /**
+     * Finds the existing cluster a candidate would be linked into without changing any linking information.
+     *
+     * @param candidate The data key of the candidate. It does not have to exist if [entity] is provided.
+     * @param entity The properties of the candidate, if they should not be loaded from the database.
+     * @param budget The latency budget for the decision. It is checked between stages.
+     * @return The best scoring existing cluster or null if the candidate would start a new cluster.
+     * @throws LatencyBudgetExceededException if the budget is exhausted before a decision is made.
+     */
+    fun findCluster(
+            candidate: EntityDataKey,
+            entity: Optional<Map<UUID, Set<Any>>>,
+            budget: LatencyBudget
+    ): ScoredCluster? {
+        val initialBlock = blocker.block(candidate, entity)
+        budget.check("blocking")
+
+        val initializedBlock = matcher.initialize(initialBlock)
+        budget.check("initialization")
+
+        val candidateEntity = initialBlock.second.getValue(candidate)
+        val clusters = lqs.getClustersForIds(collectKeys(initializedBlock.second) - candidate)
+        return selectCluster(
+                candidate,
+                candidateEntity,
+                initializedBlock.second[candidate] ?: mapOf(),
+                clusters,
+                budget
+        )
+    }
+
+    /**
+     * Selects the existing cluster with the best complete link score for a candidate, if it passes [MINIMUM_SCORE].
+     *
+     * Since the complete link score of a cluster is the minimum score of all its pairs, a cluster can be rejected as
+     * soon as any pair of the candidate with a member scores no better than the minimum score or the best cluster so
+     * far. Clusters are visited in order of the best initialization score of their members, so that the bound rises
+     * quickly, and only clusters that survive scoring against the candidate are fully matched. Large clusters are
+     * scored through their representatives from [ClusterSummaries], and clusters larger than the block size are limited
+     * according to the [BlockBudget].
+     *
+     * @param initialScores The initialization scores of the candidate against the entities in its block.
+     * @param budget The latency budget to check before each cluster, if any.
+     */
+    private fun selectCluster(
+            candidate: EntityDataKey,
+            candidateEntity: Map<UUID, Set<Any>>,
+            initialScores: Map<EntityDataKey, Double>,
+            clusters: Map<UUID, Map<EntityDataKey, Map<EntityDataKey, Double>>>,
+            budget: LatencyBudget? = null
+    ): ScoredCluster? {
+        val orderedClusters = clusters.entries.sortedByDescending { cluster ->
+            collectKeys(cluster.value).map { initialScores[it] ?: 0.0 }.max() ?: 0.0
+        }
+
+        var best: ScoredCluster? = null
+        var fullyScored = 0
+        for (cluster in orderedClusters) {
+            budget?.check("clustering")
+            val bound = Math.max(MINIMUM_SCORE, best?.score ?: MINIMUM_SCORE)
+            val members = blockBudget.limitCluster(clusterSummaries.summarize(cluster.key, cluster.value), initialScores)
+                    ?: continue
+            val loaded = scoreAgainstMembers(candidate, candidateEntity, members, initialScores, bound)
+                    ?: continue
+
+            val scoredCluster = cluster(
+                    candidate,
+                    SimpleImmutableEntry(cluster.key, members),
+                    ::completeLinkCluster,
+                    loaded
+            )
+            fullyScored++
+            if (scoredCluster.score > bound) {
+                best = scoredCluster
+            }
+        }
+
+        logger.debug("Fully scored {} of {} clusters for {}", fullyScored, clusters.size, candidate)
+        return best
+    }
+
+    /**
+     * Loads the members of a cluster and scores them against the candidate in batches, starting with the members least
+     * likely to match. Pairs with positive feedback are skipped, since matching scores them as certain matches.
+     *
+     * @return All loaded entities including the candidate, or null as soon as a pair scores at or below the bound.
+     */
+    private fun scoreAgainstMembers(
+            candidate: EntityDataKey,
+            candidateEntity: Map<UUID, Set<Any>>,
+            cluster: Map<EntityDataKey, Map<EntityDataKey, Double>>,
+            initialScores: Map<EntityDataKey, Double>,
+            bound: Double
+    ): Map<EntityDataKey, Map<UUID, Set<Any>>>? {
+        val loaded = mutableMapOf(candidate to candidateEntity)
+        val members = (collectKeys(cluster) - candidate).sortedBy { initialScores[it] ?: 0.0 }
+
+        for (batch in members.chunked(CLUSTER_SCORING_BATCH_SIZE)) {
+            val entities = loader.getEntities(batch.toSet())
+            loaded.putAll(entities)
+
+            val scored = batch.filter { entities.containsKey(it) && !feedbackIndex.isPositive(candidate, it) }
+            val scores = matcher.score(scored.map { candidateEntity to entities.getValue(it) })
+            if (scores.any { it <= bound }) {
+                return null
+            }
+        }
+        return loaded
+    }
+
+    /**
+     * Matches all pairs of a cluster and a candidate.
+     *
+     * @param loaded Entities that have already been loaded or that should not be loaded from the database.
+     */
+    private fun cluster(
+            blockKey: EntityDataKey,
+            identifiedCluster: Map.Entry<UUID, Map<EntityDataKey, Map<EntityDataKey, Double>>>,
+            clusteringStrategy: (Map<EntityDataKey, Map<EntityDataKey, Double>>) -> Double,
+            loaded: Map<EntityDataKey, Map<UUID, Set<Any>>> = mapOf()
+    ): ScoredCluster {
+        val entities = loader.getEntities(collectKeys(identifiedCluster.value) + blockKey - loaded.keys) + loaded
+        val block = blockKey to entities
+        //At some point, we may want to skip recomputing matches for existing cluster elements as an optimization.
+        //Since we're freshly loading entities it's not too bad to recompute everything.
+        val matchedBlock = matcher.match(block)
+        val matchedCluster = matchedBlock.second
+        val score = clusteringStrategy(matchedCluster)
+        return ScoredCluster(identifiedCluster.key, matchedCluster, score)
+    }
+
+    /**
+     * Discards cached blocking results touching [entitySetIds], after entities in them have been indexed.
+     */
+    fun invalidateBlocks(entitySetIds: Set<UUID>) {
+        blocker.invalidate(entitySetIds)
+    }
+
+    private fun commit(event: ClusterCommitEvent, candidate: EntityDataKey, clusterCount: Int, newCluster: Boolean) {
+        event.end()
+        if (event.shouldCommit()) {
+            event.candidate(candidate)
+            event.clusterCount = clusterCount
+            event.newCluster = newCluster
+            event.commit()
+        }
+    }
+
+    /**
+     * Adds the pairs of a candidate to the stored scores of the cluster it joins. Clusters scored through their
+     * representatives or truncated to the block size were only scored against some of their members, so the scores
+     * among existing members are kept as stored rather than replaced by the partial scores.
+     */
+    private fun mergeCandidateScores(
+            candidate: EntityDataKey,
+            stored: Map<EntityDataKey, Map<EntityDataKey, Double>>,
+            scored: Map<EntityDataKey, Map<EntityDataKey, Double>>
+    ): Map<EntityDataKey, Map<EntityDataKey, Double>> {
+        val merged = stored.mapValuesTo(mutableMapOf<EntityDataKey, MutableMap<EntityDataKey, Double>>()) {
+            it.value.toMutableMap()
+        }
+        scored.forEach { (src, dsts) ->
+            dsts.forEach { (dst, score) ->
+                if (src == candidate || dst == candidate) {
+                    merged.getOrPut(src) { mutableMapOf() }[dst] = score
+                }
+            }
+        }
+        return merged
+    }
+
+    private fun <T> collectKeys(m: Map<EntityDataKey, Map<EntityDataKey, T>>): Set<EntityDataKey> {
+        return m.keys + m.values.flatMap { it.keys }
+    }
+
+    /**
+     * Clears the neighborhood of a candidate, except for pairs with positive feedback. Feedback is read from the
+     * database rather than the [LinkingFeedbackIndex], since feedback submitted through another node may not have
+     * reached the index of this node yet.
+     *
+     * @return The pairs of the candidate with positive feedback.
+     */
+    private fun clearNeighborhoods(candidate: EntityDataKey): Set<EntityKeyPair> {
+        logger.debug("Starting neighborhood cleanup of {}", candidate)
+        val positiveFeedbacks = linkingFeedbackService.getLinkingFeedbackEntityKeyPairs(
+                FeedbackType.Positive, candidate
+        )
+
+        val clearedCount = lqs.deleteNeighborhood(candidate, positiveFeedbacks)
+        logger.debug("Cleared {} neighbors from neighborhood of {}", clearedCount, candidate)
+        return positiveFeedbacks
+    }
+
+    private fun insertMatches(
+            linkingId: UUID,
+            newMember: EntityDataKey,
+            scores: Map<EntityDataKey, Map<EntityDataKey, Double>>
+    ) {
+        val scoresAsEsidToEkids = (collectKeys(scores) + newMember)
+                .groupBy { edk -> edk.entitySetId }
+                .mapValues { (_, edks) ->
+
+                    Sets.newLinkedHashSet(edks.map { it.entityKeyId })
+                }
+        lqs.updateLinkingInformation( linkingId, newMember, scoresAsEsidToEkids )
+    }
+}
+
+data class ScoredCluster(
+        val clusterId: UUID,
+        val cluster: Map<EntityDataKey, Map<EntityDataKey, Double>>,
+        val score: Double
+) : Comparable<Double> {
+    override fun compareTo(other: Double): Int {
+        return score.compareTo(other)
+    }
+}
+
+internal fun completeLinkCluster(matchedCluster: Map<EntityDataKey, Map<EntityDataKey, Double>>): Double {
+    return matchedCluster.values.flatMap { it.values }.min() ?: 0.0
+}
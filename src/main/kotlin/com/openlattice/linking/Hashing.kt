@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+/**
+ * The 64 bit finalizer of MurmurHash3.
+ */
+internal fun mix(value: Long): Long {
+    var h = value
+    h = h xor (h ushr 33)
+    h *= -0xae502812aa7333L
+    h = h xor (h ushr 33)
+    h *= -0x3b314601e57a13adL
+    return h xor (h ushr 33)
+}
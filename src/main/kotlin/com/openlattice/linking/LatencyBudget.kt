@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.google.common.base.Stopwatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tracks the time spent on a latency sensitive linking request, starting from construction.
+ */
+class LatencyBudget(val budgetMillis: Long) {
+    private val sw = Stopwatch.createStarted()
+
+    fun elapsedMillis(): Long {
+        return sw.elapsed(TimeUnit.MILLISECONDS)
+    }
+
+    fun isExceeded(): Boolean {
+        return elapsedMillis() > budgetMillis
+    }
+
+    /**
+     * @param stage The stage that was just completed.
+     * @throws LatencyBudgetExceededException if the budget has been exhausted.
+     */
+    fun check(stage: String) {
+        val elapsed = elapsedMillis()
+        if (elapsed > budgetMillis) {
+            throw LatencyBudgetExceededException(stage, elapsed, budgetMillis)
+        }
+    }
+}
+
+class LatencyBudgetExceededException(
+        val stage: String,
+        elapsedMillis: Long,
+        budgetMillis: Long
+) : RuntimeException("Latency budget of $budgetMillis ms exhausted after $stage ($elapsedMillis ms elapsed).")
@@ -28,13 +28,16 @@ import com.kryptnostic.rhizome.configuration.ConfigurationKey
 import com.kryptnostic.rhizome.configuration.SimpleConfigurationKey
 import com.kryptnostic.rhizome.configuration.annotation.ReloadableConfiguration
 import com.openlattice.conductor.rpc.SearchConfiguration
+import com.openlattice.linking.blocking.OversizedClusterPolicy
+import com.openlattice.linking.matching.BIRTH_DATE_PREFILTER
+import com.openlattice.linking.matching.SEX_PREFILTER
 import com.openlattice.linking.util.PersonProperties
 import org.apache.olingo.commons.api.edm.FullQualifiedName
 import java.util.*
 
 
 const val DEFAULT_BLOCK_SIZE = 10_000
-private const val CONFIG_YAML_NAME = "linking.yaml"
+internal const val CONFIG_YAML_NAME = "linking.yaml"
 private const val BLOCK_SIZE_FIELD = "block-size"
 private const val BLACKLIST = "blacklist"
 private const val ENTITY_TYPES_FIELD = "entity-types"
@@ -43,6 +46,38 @@ private const val SEARCH_CONFIGURATION = "searchConfiguration"
 private const val BATCH_SIZE = "batch-size"
 private const val LOAD_SIZE = "load-size"
 private const val BACKGROUND_LINKING_ENABLED = "background-linking-enabled"
+private const val ENTITY_SET_WEIGHTS = "entity-set-weights"
+private const val PRIORITY_WEIGHT = "priority-weight"
+private const val MAX_CANDIDATE_WAIT_MILLIS = "max-candidate-wait-millis"
+private const val COALESCE_WINDOW_MILLIS = "coalesce-window-millis"
+private const val PREFILTERS = "prefilters"
+private const val BIRTH_DATE_BAND_DAYS = "birth-date-band-days"
+private const val BLOCKING_CACHE_SIZE = "blocking-cache-size"
+private const val BLOCKING_CACHE_TTL_MILLIS = "blocking-cache-ttl-millis"
+private const val ADAPTIVE_BLOCK_DEPTH = "adaptive-block-depth"
+private const val MINIMUM_BLOCK_DEPTH = "minimum-block-depth"
+private const val MAXIMUM_BLOCK_DEPTH = "maximum-block-depth"
+private const val BLOCK_DEPTH_OBSERVATIONS = "block-depth-observations"
+private const val BLOCK_DEPTH_OVERRIDES = "block-depth-overrides"
+private const val BLOCK_LOADING_PARALLELISM = "block-loading-parallelism"
+private const val BLOCK_LOADING_BATCH_SIZE = "block-loading-batch-size"
+private const val BLOCK_LOADING_BUFFER = "block-loading-buffer"
+private const val BLOCK_BYTES = "block-bytes"
+private const val OVERSIZED_CLUSTER_POLICY = "oversized-cluster-policy"
+private const val EXACT_CLUSTER_SIZE = "exact-cluster-size"
+private const val CLUSTER_REPRESENTATIVES = "cluster-representatives"
+private const val CLUSTER_SUMMARY_CACHE_SIZE = "cluster-summary-cache-size"
+private const val PARTITION_AFFINITY = "partition-affinity"
+private const val LINKING_JOURNAL_ENABLED = "linking-journal-enabled"
+private const val WARMUP_ENABLED = "warmup-enabled"
+private const val WARMUP_BLOCK_SIZE = "warmup-block-size"
+private const val WARMUP_MAX_ROUNDS = "warmup-max-rounds"
+private const val WARMUP_MAX_MILLIS = "warmup-max-millis"
+private const val WARMUP_TOLERANCE = "warmup-tolerance"
+private const val BLOCK_CAPTURE_DIRECTORY = "block-capture-directory"
+private const val BLOCK_CAPTURE_HASHING = "block-capture-hashing"
+private const val BLOCK_CAPTURE_LIMIT = "block-capture-limit"
+private val DEFAULT_PREFILTERS = listOf(SEX_PREFILTER, BIRTH_DATE_PREFILTER)
 private val DEFAULT_ENTITY_TYPES = setOf(PersonProperties.PERSON_TYPE_FQN)
 
 /**
@@ -58,7 +93,38 @@ data class LinkingConfiguration(
         @JsonProperty(LOAD_SIZE) val loadSize: Int = 100,
         @JsonProperty(BACKGROUND_LINKING_ENABLED) val backgroundLinkingEnabled: Boolean = true,
         @JsonProperty(ENTITY_TYPES_FIELD) val entityTypes: Set<FullQualifiedName> = DEFAULT_ENTITY_TYPES,
-        @JsonProperty("parallelism") val parallelism : Int = Runtime.getRuntime().availableProcessors()
+        @JsonProperty("parallelism") val parallelism : Int = Runtime.getRuntime().availableProcessors(),
+        @JsonProperty(ENTITY_SET_WEIGHTS) val entitySetWeights: Map<UUID, Double> = mapOf(),
+        @JsonProperty(PRIORITY_WEIGHT) val priorityWeight: Double = 4.0,
+        @JsonProperty(MAX_CANDIDATE_WAIT_MILLIS) val maxCandidateWaitMillis: Long = 900_000L,
+        @JsonProperty(COALESCE_WINDOW_MILLIS) val coalesceWindowMillis: Long = 10_000L,
+        @JsonProperty(PREFILTERS) val prefilters: List<String> = DEFAULT_PREFILTERS,
+        @JsonProperty(BIRTH_DATE_BAND_DAYS) val birthDateBandDays: Long = 730L,
+        @JsonProperty(BLOCKING_CACHE_SIZE) val blockingCacheSize: Long = 10_000L,
+        @JsonProperty(BLOCKING_CACHE_TTL_MILLIS) val blockingCacheTtlMillis: Long = 60_000L,
+        @JsonProperty(ADAPTIVE_BLOCK_DEPTH) val adaptiveBlockDepth: Boolean = false,
+        @JsonProperty(MINIMUM_BLOCK_DEPTH) val minimumBlockDepth: Int = 10,
+        @JsonProperty(MAXIMUM_BLOCK_DEPTH) val maximumBlockDepth: Int = 50,
+        @JsonProperty(BLOCK_DEPTH_OBSERVATIONS) val blockDepthObservations: Long = 100L,
+        @JsonProperty(BLOCK_DEPTH_OVERRIDES) val blockDepthOverrides: Map<UUID, Int> = mapOf(),
+        @JsonProperty(BLOCK_LOADING_PARALLELISM) val blockLoadingParallelism: Int = Runtime.getRuntime().availableProcessors(),
+        @JsonProperty(BLOCK_LOADING_BATCH_SIZE) val blockLoadingBatchSize: Int = 64,
+        @JsonProperty(BLOCK_LOADING_BUFFER) val blockLoadingBuffer: Int = 8,
+        @JsonProperty(BLOCK_BYTES) val blockBytes: Long = 64L * 1024 * 1024,
+        @JsonProperty(OVERSIZED_CLUSTER_POLICY) val oversizedClusterPolicy: OversizedClusterPolicy = OversizedClusterPolicy.TRUNCATE,
+        @JsonProperty(EXACT_CLUSTER_SIZE) val exactClusterSize: Int = 250,
+        @JsonProperty(CLUSTER_REPRESENTATIVES) val clusterRepresentatives: Int = 16,
+        @JsonProperty(CLUSTER_SUMMARY_CACHE_SIZE) val clusterSummaryCacheSize: Long = 10_000L,
+        @JsonProperty(PARTITION_AFFINITY) val partitionAffinity: Boolean = true,
+        @JsonProperty(LINKING_JOURNAL_ENABLED) val linkingJournalEnabled: Boolean = false,
+        @JsonProperty(WARMUP_ENABLED) val warmupEnabled: Boolean = true,
+        @JsonProperty(WARMUP_BLOCK_SIZE) val warmupBlockSize: Int = 200,
+        @JsonProperty(WARMUP_MAX_ROUNDS) val warmupMaxRounds: Int = 500,
+        @JsonProperty(WARMUP_MAX_MILLIS) val warmupMaxMillis: Long = 120_000L,
+        @JsonProperty(WARMUP_TOLERANCE) val warmupTolerance: Double = 0.1,
+        @JsonProperty(BLOCK_CAPTURE_DIRECTORY) val blockCaptureDirectory: String = "",
+        @JsonProperty(BLOCK_CAPTURE_HASHING) val blockCaptureHashing: Boolean = true,
+        @JsonProperty(BLOCK_CAPTURE_LIMIT) val blockCaptureLimit: Long = 10_000L
 ) : Configuration {
     companion object {
         @JvmStatic
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.google.common.collect.Interners
+import java.util.AbstractMap.SimpleImmutableEntry
+import java.util.UUID
+
+private val STRINGS = Interners.newWeakInterner<String>()
+
+/**
+ * The property types loaded for linking, assigning each one a fixed slot so that entities do not have to store their
+ * own keys.
+ */
+class LinkingSchema(propertyTypeIds: Collection<UUID>) {
+    val propertyTypeIds: List<UUID> = propertyTypeIds.distinct()
+    private val slots = this.propertyTypeIds.withIndex().associate { it.value to it.index }
+
+    fun slot(propertyTypeId: UUID): Int {
+        return slots[propertyTypeId] ?: -1
+    }
+
+    /**
+     * Converts an entity to a compact [LinkingEntity]. Values are stored by their string representation, which is how
+     * they are compared during blocking and matching, and interned. Properties outside the schema are dropped.
+     */
+    fun entity(properties: Map<UUID, Set<Any>>): LinkingEntity {
+        if (properties is LinkingEntity && properties.schema === this) {
+            return properties
+        }
+        val values = arrayOfNulls<Array<String>>(propertyTypeIds.size)
+        properties.forEach { (propertyTypeId, propertyValues) ->
+            val slot = slot(propertyTypeId)
+            if (slot >= 0 && propertyValues.isNotEmpty()) {
+                values[slot] = propertyValues.map { STRINGS.intern(it.toString()) }.distinct().toTypedArray()
+            }
+        }
+        return LinkingEntity(this, values)
+    }
+}
+
+/**
+ * A read only entity that stores the values of each property type of its [LinkingSchema] in a fixed slot, as an array
+ * of interned strings.
+ */
+class LinkingEntity internal constructor(
+        val schema: LinkingSchema,
+        private val values: Array<Array<String>?>
+) : kotlin.collections.AbstractMap<UUID, Set<Any>>() {
+
+    /**
+     * Set views of the slots, materialized once on first use, so that map access from blocking and matching does not
+     * allocate on every call. Entities that are only read through [getValues] never create them.
+     */
+    private val valueSets: Array<Set<Any>?> by lazy(LazyThreadSafetyMode.PUBLICATION) {
+        Array<Set<Any>?>(values.size) { slot -> values[slot]?.let { ValueSet(it) } }
+    }
+
+    override val entries: Set<Map.Entry<UUID, Set<Any>>> by lazy(LazyThreadSafetyMode.PUBLICATION) {
+        schema.propertyTypeIds
+                .withIndex()
+                .mapNotNull { (slot, propertyTypeId) ->
+                    valueSets[slot]?.let { SimpleImmutableEntry<UUID, Set<Any>>(propertyTypeId, it) }
+                }
+                .toSet()
+    }
+
+    override val size: Int
+        get() = values.count { it != null }
+
+    override fun containsKey(key: UUID): Boolean {
+        val slot = schema.slot(key)
+        return slot >= 0 && values[slot] != null
+    }
+
+    override fun get(key: UUID): Set<Any>? {
+        val slot = schema.slot(key)
+        return if (slot < 0) null else valueSets[slot]
+    }
+
+    /**
+     * @return The string values of a property type without allocating a set, or null if the entity has no values.
+     */
+    fun getValues(propertyTypeId: UUID): Array<String>? {
+        val slot = schema.slot(propertyTypeId)
+        return if (slot < 0) null else values[slot]
+    }
+
+    /**
+     * A read only view of the distinct values of a property.
+     */
+    private class ValueSet(private val values: Array<String>) : kotlin.collections.AbstractSet<Any>() {
+        override val size: Int
+            get() = values.size
+
+        override fun contains(element: Any): Boolean {
+            return values.contains(element)
+        }
+
+        override fun iterator(): Iterator<Any> {
+            return values.iterator()
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.google.common.base.Stopwatch
+import com.openlattice.data.EntityDataKey
+import org.slf4j.LoggerFactory
+import org.springframework.scheduling.annotation.Scheduled
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+internal const val FEEDBACK_INDEX_REFRESH_RATE = 300_000L
+
+/**
+ * An in-memory index of all linking feedback, so that blocking and matching can check feedback without going to the
+ * database.
+ *
+ * Feedback pairs and the entities they involve are stored as 64 bit hashes in sorted arrays, which are replaced
+ * wholesale on every update. Lookups are lock-free binary searches and a false positive requires a 64 bit hash
+ * collision. The index is updated incrementally as feedback is submitted or deleted through this node and is reloaded
+ * periodically to pick up feedback submitted through other nodes.
+ *
+ * @param feedbackSource Provides all linking feedback.
+ */
+class LinkingFeedbackIndex(private val feedbackSource: () -> Iterable<EntityLinkingFeedback>) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(LinkingFeedbackIndex::class.java)
+    }
+
+    private val lock = Any()
+
+    @Volatile
+    private var snapshot = Snapshot()
+
+    /**
+     * Updates applied since the start of an in progress refresh, which have to be replayed on the reloaded snapshot.
+     */
+    private var pendingUpdates: MutableList<(Snapshot) -> Snapshot>? = null
+
+    init {
+        refresh()
+    }
+
+    @Scheduled(fixedRate = FEEDBACK_INDEX_REFRESH_RATE, initialDelay = FEEDBACK_INDEX_REFRESH_RATE)
+    fun refresh() {
+        val sw = Stopwatch.createStarted()
+        synchronized(lock) {
+            pendingUpdates = mutableListOf()
+        }
+
+        val loaded = Snapshot().with(feedbackSource())
+
+        synchronized(lock) {
+            snapshot = pendingUpdates!!.fold(loaded) { current, update -> update(current) }
+            pendingUpdates = null
+        }
+        logger.info(
+                "Indexed {} positive and {} negative linking feedbacks in {} ms.",
+                snapshot.positivePairs.size,
+                snapshot.negativePairs.size,
+                sw.elapsed(TimeUnit.MILLISECONDS)
+        )
+    }
+
+    fun add(feedback: Collection<EntityLinkingFeedback>) {
+        update { it.with(feedback) }
+    }
+
+    fun remove(entityPair: EntityKeyPair) {
+        update { it.without(entityPair) }
+    }
+
+    /**
+     * @return True if the entity has any feedback of the given type. [FeedbackType.Positive] and
+     * [FeedbackType.Negative] are checked individually and any other type matches feedback of either kind.
+     */
+    fun hasFeedback(feedbackType: FeedbackType, entity: EntityDataKey): Boolean {
+        val current = snapshot
+        val hash = hash(entity.entitySetId, entity.entityKeyId)
+        return when (feedbackType) {
+            FeedbackType.Positive -> current.positiveEntities.contains(hash)
+            FeedbackType.Negative -> current.negativeEntities.contains(hash)
+            else -> current.positiveEntities.contains(hash) || current.negativeEntities.contains(hash)
+        }
+    }
+
+    fun isPositive(entity: EntityDataKey, other: EntityDataKey): Boolean {
+        return snapshot.positivePairs.contains(pairHash(entity, other.entitySetId, other.entityKeyId))
+    }
+
+    /**
+     * Checks for negative feedback without requiring the other entity to be wrapped in an [EntityDataKey].
+     */
+    fun isNegative(entity: EntityDataKey, otherEntitySetId: UUID, otherEntityKeyId: UUID): Boolean {
+        return snapshot.negativePairs.contains(pairHash(entity, otherEntitySetId, otherEntityKeyId))
+    }
+
+    private fun update(update: (Snapshot) -> Snapshot) {
+        synchronized(lock) {
+            snapshot = update(snapshot)
+            pendingUpdates?.add(update)
+        }
+    }
+
+    private class Snapshot(
+            val positivePairs: SortedLongs = SortedLongs(),
+            val negativePairs: SortedLongs = SortedLongs(),
+            val positiveEntities: SortedLongs = SortedLongs(),
+            val negativeEntities: SortedLongs = SortedLongs()
+    ) {
+        fun with(feedback: Iterable<EntityLinkingFeedback>): Snapshot {
+            val rows = feedback.toList()
+            val (positive, negative) = rows.partition { it.linked }
+            val withoutUpdated = without(rows.map { it.entityPair })
+            return Snapshot(
+                    withoutUpdated.positivePairs.plus(positive.map { pairHash(it.entityPair) }),
+                    withoutUpdated.negativePairs.plus(negative.map { pairHash(it.entityPair) }),
+                    withoutUpdated.positiveEntities.plus(positive.flatMap { entityHashes(it.entityPair) }),
+                    withoutUpdated.negativeEntities.plus(negative.flatMap { entityHashes(it.entityPair) })
+            )
+        }
+
+        fun without(entityPair: EntityKeyPair): Snapshot {
+            return without(listOf(entityPair))
+        }
+
+        private fun without(entityPairs: List<EntityKeyPair>): Snapshot {
+            val positive = entityPairs.filter { positivePairs.contains(pairHash(it)) }
+            val negative = entityPairs.filter { negativePairs.contains(pairHash(it)) }
+            if (positive.isEmpty() && negative.isEmpty()) {
+                return this
+            }
+            return Snapshot(
+                    positivePairs.minus(positive.map { pairHash(it) }),
+                    negativePairs.minus(negative.map { pairHash(it) }),
+                    positiveEntities.minus(positive.flatMap { entityHashes(it) }),
+                    negativeEntities.minus(negative.flatMap { entityHashes(it) })
+            )
+        }
+    }
+}
+
+/**
+ * An immutable multiset of longs stored in a sorted array.
+ */
+internal class SortedLongs(private val values: LongArray = LongArray(0)) {
+    val size: Int
+        get() = values.size
+
+    fun contains(value: Long): Boolean {
+        return Arrays.binarySearch(values, value) >= 0
+    }
+
+    fun plus(added: Collection<Long>): SortedLongs {
+        if (added.isEmpty()) {
+            return this
+        }
+        val merged = values.copyOf(values.size + added.size)
+        added.forEachIndexed { index, value -> merged[values.size + index] = value }
+        merged.sort()
+        return SortedLongs(merged)
+    }
+
+    /**
+     * Removes one occurrence of each value.
+     */
+    fun minus(removed: Collection<Long>): SortedLongs {
+        if (removed.isEmpty()) {
+            return this
+        }
+        val remaining = removed.groupingBy { it }.eachCount().toMutableMap()
+        return SortedLongs(values.filter { value ->
+            val count = remaining[value] ?: 0
+            if (count > 0) {
+                remaining[value] = count - 1
+                false
+            } else {
+                true
+            }
+        }.toLongArray())
+    }
+}
+
+private fun entityHashes(entityPair: EntityKeyPair): List<Long> {
+    return listOf(
+            hash(entityPair.first.entitySetId, entityPair.first.entityKeyId),
+            hash(entityPair.second.entitySetId, entityPair.second.entityKeyId)
+    )
+}
+
+private fun pairHash(entityPair: EntityKeyPair): Long {
+    return pairHash(entityPair.first, entityPair.second.entitySetId, entityPair.second.entityKeyId)
+}
+
+/**
+ * Combines the hashes of both entities independently of their order, since feedback is symmetric.
+ */
+private fun pairHash(entity: EntityDataKey, otherEntitySetId: UUID, otherEntityKeyId: UUID): Long {
+    val lhs = hash(entity.entitySetId, entity.entityKeyId)
+    val rhs = hash(otherEntitySetId, otherEntityKeyId)
+    return mix(minOf(lhs, rhs) * -0x61c8864680b583ebL + maxOf(lhs, rhs))
+}
+
+private fun hash(entitySetId: UUID, entityKeyId: UUID): Long {
+    var h = mix(entitySetId.mostSignificantBits)
+    h = mix(h xor entitySetId.leastSignificantBits)
+    h = mix(h xor entityKeyId.mostSignificantBits)
+    return mix(h xor entityKeyId.leastSignificantBits)
+}
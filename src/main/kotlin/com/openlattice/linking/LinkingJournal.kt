@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.openlattice.data.EntityDataKey
+import java.util.*
+
+/**
+ * The stages of linking a candidate that are recorded in the [LinkingJournal].
+ */
+enum class LinkingStage {
+    /**
+     * Linking of the candidate started and its neighborhood may already be deleted, so the candidate must be linked
+     * again from scratch to restore its links.
+     */
+    STARTED,
+
+    /**
+     * The block of the candidate was initialized and its initialization scores were recorded, so linking can resume
+     * with clustering.
+     */
+    INITIALIZED
+}
+
+/**
+ * The last recorded stage of a candidate, with the initialization scores of the candidate if it was initialized.
+ */
+data class LinkingCheckpoint(
+        val candidate: EntityDataKey,
+        val stage: LinkingStage,
+        val initialScores: Map<EntityDataKey, Double> = mapOf()
+)
+
+/**
+ * A durable record of the candidates being linked by each linker node and how far linking got, so that work left
+ * behind by a node that died can be resumed or restarted by another node right away.
+ */
+interface LinkingJournal {
+    /**
+     * Records that linking of a candidate by this node reached a stage.
+     */
+    fun record(candidate: EntityDataKey, stage: LinkingStage, initialScores: Map<EntityDataKey, Double> = mapOf())
+
+    /**
+     * Records that linking of a candidate completed or failed, so that it is no longer recovered.
+     */
+    fun complete(candidate: EntityDataKey)
+
+    /**
+     * @param liveNodes The linker nodes that are alive.
+     * @return Candidates that are being linked by nodes that are no longer alive.
+     */
+    fun getOrphaned(liveNodes: Collection<UUID>, limit: Int): List<EntityDataKey>
+
+    /**
+     * Takes over an orphaned candidate, so that no other node recovers it.
+     *
+     * @return The last checkpoint of the candidate or null if it was already claimed or its node is alive.
+     */
+    fun claim(candidate: EntityDataKey, liveNodes: Collection<UUID>): LinkingCheckpoint?
+}
+
+/**
+ * A journal that records nothing, for when journaling is disabled.
+ */
+class NoOpLinkingJournal : LinkingJournal {
+    override fun record(candidate: EntityDataKey, stage: LinkingStage, initialScores: Map<EntityDataKey, Double>) {
+    }
+
+    override fun complete(candidate: EntityDataKey) {
+    }
+
+    override fun getOrphaned(liveNodes: Collection<UUID>, limit: Int): List<EntityDataKey> {
+        return listOf()
+    }
+
+    override fun claim(candidate: EntityDataKey, liveNodes: Collection<UUID>): LinkingCheckpoint? {
+        return null
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.codahale.metrics.Meter
+import com.codahale.metrics.MetricRegistry
+import com.google.common.base.Stopwatch
+import com.openlattice.data.EntityDataKey
+import org.slf4j.LoggerFactory
+import org.springframework.scheduling.annotation.Scheduled
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+internal const val PROGRESS_REFRESH_RATE = 300_000L
+
+/**
+ * Maintains per entity set linking progress, so that progress can be read without scanning for entities that need
+ * linking.
+ *
+ * The entities needing linking in each entity set are counted in the background once per [PROGRESS_REFRESH_RATE] and
+ * the count is decremented as this node links candidates in between. Links made by other nodes and new writes show up
+ * with the next count. The candidates queued and linked on this node are maintained as this node queues and links
+ * them, along with its linking throughput.
+ */
+class LinkingProgressTracker(
+        private val lqs: LinkingQueryService,
+        private val linkableTypes: Set<UUID>,
+        configuration: LinkingConfiguration,
+        private val metricRegistry: MetricRegistry
+) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(LinkingProgressTracker::class.java)
+    }
+
+    private val entitySetBlacklist = configuration.blacklist
+    private val priorityEntitySets = configuration.whitelist.orElseGet { setOf() }
+
+    private val progress = ConcurrentHashMap<UUID, EntitySetProgress>()
+    private val linkedMeter = metricRegistry.meter(MetricRegistry.name(LinkingProgressTracker::class.java, "linked"))
+
+    @Volatile
+    private var linkableEntitySets: Set<UUID> = setOf()
+
+    @Volatile
+    private var refreshedAt: Long? = null
+
+    /**
+     * Recounts the entities needing linking in every linkable entity set.
+     */
+    @Scheduled(fixedRate = PROGRESS_REFRESH_RATE)
+    fun refresh() {
+        try {
+            val sw = Stopwatch.createStarted()
+            val entitySetIds = lqs
+                    .getLinkableEntitySets(linkableTypes, entitySetBlacklist, priorityEntitySets)
+                    .toSet()
+            val counts = lqs.getEntitiesNotLinked(entitySetIds).groupingBy { it.first }.eachCount()
+
+            entitySetIds.forEach { entitySetId ->
+                getProgress(entitySetId).pending.set(counts[entitySetId]?.toLong() ?: 0L)
+            }
+            linkableEntitySets = entitySetIds
+            refreshedAt = System.currentTimeMillis()
+            logger.info(
+                    "Counted {} entities needing linking across {} entity sets in {} ms.",
+                    counts.values.sum(),
+                    entitySetIds.size,
+                    sw.elapsed(TimeUnit.MILLISECONDS)
+            )
+        } catch (ex: Exception) {
+            logger.error("Unable to count entities needing linking.", ex)
+        }
+    }
+
+    /**
+     * Records candidates newly queued for linking on this node.
+     */
+    fun enqueued(candidates: Collection<EntityDataKey>) {
+        candidates.groupingBy { it.entitySetId }.eachCount().forEach { (entitySetId, count) ->
+            getProgress(entitySetId).queued.addAndGet(count.toLong())
+        }
+    }
+
+    /**
+     * Records a candidate that left the queue of this node, whether or not it was linked successfully.
+     */
+    fun dequeued(candidate: EntityDataKey) {
+        getProgress(candidate.entitySetId).queued.updateAndGet { Math.max(0L, it - 1) }
+    }
+
+    /**
+     * Records a candidate that was linked by this node.
+     */
+    fun linked(candidate: EntityDataKey) {
+        val entitySetProgress = getProgress(candidate.entitySetId)
+        entitySetProgress.pending.updateAndGet { Math.max(0L, it - 1) }
+        entitySetProgress.linked.incrementAndGet()
+        entitySetProgress.meter.mark()
+        linkedMeter.mark()
+    }
+
+    /**
+     * @return The linkable entity sets without entities needing linking or queued on this node, as of the last count
+     * less the links made by this node since. It is empty until entities have been counted once.
+     */
+    fun getFinishedEntitySets(): Set<UUID> {
+        return linkableEntitySets.filter { getProgress(it).isFinished() }.toSet()
+    }
+
+    fun getLinkingProgress(): LinkingProgress {
+        val entitySets = linkableEntitySets.map { entitySetId ->
+            val entitySetProgress = getProgress(entitySetId)
+            EntitySetLinkingProgress(
+                    entitySetId,
+                    entitySetProgress.pending.get(),
+                    entitySetProgress.queued.get(),
+                    entitySetProgress.linked.get(),
+                    entitySetProgress.meter.oneMinuteRate * 60
+            )
+        }
+        return LinkingProgress(entitySets, linkedMeter.oneMinuteRate * 60, refreshedAt)
+    }
+
+    private fun getProgress(entitySetId: UUID): EntitySetProgress {
+        return progress.computeIfAbsent(entitySetId) {
+            EntitySetProgress(
+                    metricRegistry.meter(
+                            MetricRegistry.name(LinkingProgressTracker::class.java, "linked", entitySetId.toString())
+                    )
+            )
+        }
+    }
+
+    private class EntitySetProgress(val meter: Meter) {
+        val pending = AtomicLong()
+        val queued = AtomicLong()
+        val linked = AtomicLong()
+
+        fun isFinished(): Boolean {
+            return pending.get() == 0L && queued.get() == 0L
+        }
+    }
+}
+
+/**
+ * @param pending The number of entities in the entity set needing linking across all nodes as of the last count, less
+ * the entities linked by this node since.
+ * @param queued The number of entities in the entity set queued for linking on this node.
+ * @param linked The number of entities in the entity set linked by this node since it started.
+ * @param linksPerMinute The rate at which this node linked entities of the entity set over the last minute.
+ */
+data class EntitySetLinkingProgress(
+        val entitySetId: UUID,
+        val pending: Long,
+        val queued: Long,
+        val linked: Long,
+        val linksPerMinute: Double
+)
+
+/**
+ * @param linksPerMinute The rate at which this node linked entities over the last minute.
+ * @param refreshedAt When entities needing linking were last counted, in millis since the epoch.
+ */
+data class LinkingProgress(
+        val entitySets: List<EntitySetLinkingProgress>,
+        val linksPerMinute: Double,
+        val refreshedAt: Long?
+)
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.health.HealthCheck
+import com.google.common.base.Stopwatch
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.matching.PrefilterCascade
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+private const val EMPLOYEES_CSV = "employees.csv"
+
+/**
+ * The number of warm-up rounds whose mean latency is compared with the mean latency of the rounds before them.
+ */
+internal const val WARMUP_WINDOW = 10
+
+/**
+ * The share of a block that are variants of the candidate, so that warm-up blocks produce clusters to score.
+ */
+private const val WARMUP_MATCH_RATE = 0.1
+
+/**
+ * Runs synthetic blocks of people named after the employees in employees.csv through initialization, matching and
+ * complete link scoring until their latency stabilizes, so that the JIT and the native kernels of the matching model
+ * are warm before linking real candidates.
+ *
+ * Linking is ready once warm-up finishes, gives up after [LinkingConfiguration.warmupMaxMillis] or fails. Readiness is
+ * reported as a health check. Warm-up rounds are not counted by [prefilters], so that the rejection rates reported for
+ * real blocks are not skewed by synthetic people, even when realtime linking runs alongside warm-up.
+ */
+class LinkingWarmup(
+        private val matcher: Matcher,
+        private val prefilters: PrefilterCascade,
+        private val fqnToIdMap: Map<FullQualifiedName, UUID>,
+        private val configuration: LinkingConfiguration,
+        private val metricRegistry: MetricRegistry
+) : HealthCheck() {
+    companion object {
+        private val logger = LoggerFactory.getLogger(LinkingWarmup::class.java)
+    }
+
+    private val ready = CountDownLatch(1)
+    private val rounds = metricRegistry.timer(MetricRegistry.name(LinkingWarmup::class.java, "rounds"))
+    private val random = Random()
+    private val entitySetId = UUID.randomUUID()
+
+    /**
+     * Warms up linking and marks it ready. Returns immediately if warm-up is disabled or already finished.
+     */
+    fun run() {
+        if (!configuration.warmupEnabled || isReady()) {
+            ready.countDown()
+            return
+        }
+
+        try {
+            val names = loadNames()
+            val latencies = mutableListOf<Long>()
+            val sw = Stopwatch.createStarted()
+            while (latencies.size < configuration.warmupMaxRounds
+                    && sw.elapsed(TimeUnit.MILLISECONDS) < configuration.warmupMaxMillis
+                    && !isStable(latencies, WARMUP_WINDOW, configuration.warmupTolerance)) {
+                val roundSw = Stopwatch.createStarted()
+                prefilters.uncounted { runRound(names) }
+                latencies.add(roundSw.elapsed(TimeUnit.MICROSECONDS))
+                rounds.update(latencies.last(), TimeUnit.MICROSECONDS)
+            }
+            logger.info(
+                    "Warmed up linking with {} synthetic blocks in {} ms. Last round took {} us after {} us for the first.",
+                    latencies.size,
+                    sw.elapsed(TimeUnit.MILLISECONDS),
+                    latencies.lastOrNull(),
+                    latencies.firstOrNull()
+            )
+        } catch (ex: Exception) {
+            logger.error("Unable to warm up linking. Linking will start cold.", ex)
+        } finally {
+            ready.countDown()
+        }
+    }
+
+    fun isReady(): Boolean {
+        return ready.count == 0L
+    }
+
+    /**
+     * Waits until linking is ready.
+     */
+    fun awaitReady() {
+        ready.await()
+    }
+
+    override fun check(): Result {
+        return if (isReady()) {
+            Result.healthy("Linking is warmed up.")
+        } else {
+            Result.unhealthy("Linking is still warming up.")
+        }
+    }
+
+    /**
+     * Initializes a synthetic block and scores the cluster of the candidate and its matches, the way a candidate is
+     * linked into a new cluster.
+     */
+    private fun runRound(names: List<String>) {
+        val candidate = EntityDataKey(entitySetId, UUID.randomUUID())
+        val candidateEntity = toPerson(names[random.nextInt(names.size)])
+        val block = (1 until configuration.warmupBlockSize)
+                .map { _ ->
+                    val entity = if (random.nextDouble() < WARMUP_MATCH_RATE) {
+                        candidateEntity
+                    } else {
+                        toPerson(names[random.nextInt(names.size)])
+                    }
+                    EntityDataKey(entitySetId, UUID.randomUUID()) to entity
+                }
+                .toMap() + (candidate to candidateEntity)
+
+        val initializedBlock = matcher.initialize(StreamingBlock.of(candidate to block))
+        val matches = initializedBlock.second[candidate]?.keys ?: setOf()
+        matcher.match(candidate to block.filterKeys { matches.contains(it) || it == candidate })
+    }
+
+    /**
+     * Names are listed as "SURNAME,  GIVEN MIDDLE". Synthetic people get a random sex and birth date, so that some
+     * pairs are removed by prefiltering.
+     */
+    private fun toPerson(name: String): Map<UUID, Set<Any>> {
+        val given = name.substringAfter(',').trim().split(' ')
+        val birthDate = "${1940 + random.nextInt(60)}-0${1 + random.nextInt(9)}-1${random.nextInt(10)}"
+        return listOf(
+                "nc.PersonSurName" to setOf<Any>(name.substringBefore(',').trim()),
+                "nc.PersonGivenName" to setOf<Any>(given.first()),
+                "nc.PersonMiddleName" to given.drop(1).toSet<Any>(),
+                "nc.PersonBirthDate" to setOf<Any>(birthDate),
+                "nc.PersonSex" to setOf<Any>(if (random.nextBoolean()) "M" else "F")
+        )
+                .mapNotNull { (fqn, value) -> fqnToIdMap[FullQualifiedName(fqn)]?.let { it to value } }
+                .toMap()
+    }
+
+    private fun loadNames(): List<String> {
+        val stream = Thread.currentThread().contextClassLoader.getResourceAsStream(EMPLOYEES_CSV)
+                ?: throw IllegalStateException("Unable to find $EMPLOYEES_CSV on the classpath.")
+        return stream.bufferedReader().use { reader ->
+            reader.readLines()
+                    .map { it.substringAfter('"').substringBefore('"') }
+                    .filter { it.contains(',') }
+        }
+    }
+}
+
+/**
+ * Latency is stable once the mean of the last [window] rounds is within [tolerance] of the mean of the [window] rounds
+ * before them.
+ */
+internal fun isStable(latencies: List<Long>, window: Int, tolerance: Double): Boolean {
+    if (latencies.size < 2 * window) {
+        return false
+    }
+    val current = latencies.takeLast(window).average()
+    val previous = latencies.subList(latencies.size - 2 * window, latencies.size - window).average()
+    return Math.abs(current - previous) <= tolerance * previous
+}
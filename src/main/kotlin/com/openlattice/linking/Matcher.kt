@@ -38,6 +38,18 @@ interface Matcher {
             block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>
     ): Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>>
 
+    /**
+     * Initializes a block as its entities are loaded. Matchers that cannot consume a block incrementally wait for the
+     * whole block to load.
+     *
+     * @param block A block that is still being loaded, which is consumed by this call.
+     */
+    fun initialize(
+            block: StreamingBlock
+    ): Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>> {
+        return initialize(block.toBlock())
+    }
+
     /**
      * Computes an approximation of the discrete metric of every pair of blocked entities.
      *
@@ -50,6 +62,14 @@ interface Matcher {
             block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>
     ): Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>>
 
+    /**
+     * Computes the match score of each pair of entities, using a single batched inference for all pairs.
+     *
+     * @param pairs The pairs of entities to score.
+     * @return The score of each pair, in the same order as the pairs.
+     */
+    fun score(pairs: List<Pair<Map<UUID, Set<Any>>, Map<UUID, Set<Any>>>>): DoubleArray
+
     fun trimAndMerge(matchedBlock: Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>>)
     /**
      * Allow inplace updating of the model used for peforming the matching.
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.openlattice.data.EntityDataKey
+import com.openlattice.postgres.PostgresColumn.*
+import com.openlattice.postgres.PostgresTable.LINKING_FEEDBACK
+import com.zaxxer.hikari.HikariDataSource
+import java.sql.PreparedStatement
+import java.util.*
+
+private val COLUMNS = listOf(SRC_ENTITY_SET_ID, SRC_ENTITY_KEY_ID, DST_ENTITY_SET_ID, DST_ENTITY_KEY_ID, LINKED)
+        .joinToString(",") { it.name }
+
+private val PRIMARY_KEY_COLUMNS = listOf(SRC_ENTITY_SET_ID, SRC_ENTITY_KEY_ID, DST_ENTITY_SET_ID, DST_ENTITY_KEY_ID)
+        .joinToString(",") { it.name }
+
+private val SELECT_FIRST_PAGE_SQL = "SELECT $COLUMNS FROM ${LINKING_FEEDBACK.name} " +
+        "ORDER BY $PRIMARY_KEY_COLUMNS OFFSET ? LIMIT ?"
+
+/**
+ * Continues after the last row of the previous page, so that later pages do not rescan the rows before them.
+ */
+private val SELECT_NEXT_PAGE_SQL = "SELECT $COLUMNS FROM ${LINKING_FEEDBACK.name} " +
+        "WHERE ($PRIMARY_KEY_COLUMNS) > (?,?,?,?) ORDER BY $PRIMARY_KEY_COLUMNS LIMIT ?"
+
+/**
+ * Reads linking feedback in pages ordered by entity pair.
+ */
+class PostgresLinkingFeedbackReader(private val hds: HikariDataSource) {
+
+    /**
+     * Lazily reads linking feedback one page at a time, without holding a connection between pages.
+     *
+     * @param offset The number of feedback rows to skip.
+     * @param count The maximum number of feedback rows to read.
+     * @param pageSize The number of feedback rows to read per query.
+     */
+    fun getLinkingFeedback(offset: Int, count: Int, pageSize: Int): Sequence<EntityLinkingFeedback> {
+        var remaining = count
+        val firstPage = readPage(SELECT_FIRST_PAGE_SQL) { ps ->
+            ps.setInt(1, offset)
+            ps.setInt(2, Math.min(pageSize, remaining))
+        }
+        return generateSequence(firstPage) { previous ->
+            remaining -= previous.feedback.size
+            if (previous.feedback.size < pageSize || remaining <= 0) {
+                return@generateSequence null
+            }
+            readPage(SELECT_NEXT_PAGE_SQL) { ps ->
+                previous.lastKey.forEachIndexed { index, id -> ps.setObject(index + 1, id) }
+                ps.setInt(5, Math.min(pageSize, remaining))
+            }
+        }.flatMap { it.feedback.asSequence() }
+    }
+
+    private fun readPage(sql: String, bind: (PreparedStatement) -> Unit): Page {
+        return hds.connection.use { connection ->
+            connection.prepareStatement(sql).use { ps ->
+                bind(ps)
+                ps.executeQuery().use { rs ->
+                    val feedback = mutableListOf<EntityLinkingFeedback>()
+                    var lastKey = listOf<UUID>()
+                    while (rs.next()) {
+                        lastKey = listOf(SRC_ENTITY_SET_ID, SRC_ENTITY_KEY_ID, DST_ENTITY_SET_ID, DST_ENTITY_KEY_ID)
+                                .map { rs.getObject(it.name, UUID::class.java) }
+                        feedback.add(
+                                EntityLinkingFeedback(
+                                        EntityKeyPair(
+                                                EntityDataKey(lastKey[0], lastKey[1]),
+                                                EntityDataKey(lastKey[2], lastKey[3])
+                                        ),
+                                        rs.getBoolean(LINKED.name)
+                                )
+                        )
+                    }
+                    Page(feedback, lastKey)
+                }
+            }
+        }
+    }
+
+    /**
+     * @param lastKey The primary key of the last row of the page, in column order.
+     */
+    private class Page(val feedback: List<EntityLinkingFeedback>, val lastKey: List<UUID>)
+}
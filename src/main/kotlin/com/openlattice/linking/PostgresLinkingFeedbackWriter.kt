@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.openlattice.postgres.PostgresColumn.*
+import com.openlattice.postgres.PostgresTable.LINKING_FEEDBACK
+import com.zaxxer.hikari.HikariDataSource
+
+private val PRIMARY_KEY_COLUMNS = listOf(SRC_ENTITY_SET_ID, SRC_ENTITY_KEY_ID, DST_ENTITY_SET_ID, DST_ENTITY_KEY_ID)
+        .joinToString(",") { it.name }
+
+/**
+ * Upserts all rows with a single statement by unnesting one array per column.
+ */
+private val BULK_UPSERT_FEEDBACK_SQL = "INSERT INTO ${LINKING_FEEDBACK.name} ($PRIMARY_KEY_COLUMNS,${LINKED.name}) " +
+        "SELECT * FROM unnest(?::uuid[],?::uuid[],?::uuid[],?::uuid[],?::boolean[]) " +
+        "ON CONFLICT ($PRIMARY_KEY_COLUMNS) DO UPDATE SET ${LINKED.name} = EXCLUDED.${LINKED.name}"
+
+/**
+ * Writes linking feedback in bulk.
+ */
+class PostgresLinkingFeedbackWriter(private val hds: HikariDataSource) {
+
+    /**
+     * Adds or updates linking feedback for all pairs with a single multi-row upsert, in a single transaction.
+     *
+     * @param feedback The feedback to write. If a pair occurs more than once, the last feedback for it is written.
+     * @return The number of feedback rows written.
+     */
+    fun addLinkingFeedback(feedback: Collection<EntityLinkingFeedback>): Int {
+        val rows = feedback.associateBy { it.entityPair }.values
+        if (rows.isEmpty()) {
+            return 0
+        }
+
+        return hds.connection.use { connection ->
+            connection.prepareStatement(BULK_UPSERT_FEEDBACK_SQL).use { ps ->
+                ps.setArray(1, connection.createArrayOf("uuid", rows.map { it.entityPair.first.entitySetId }.toTypedArray()))
+                ps.setArray(2, connection.createArrayOf("uuid", rows.map { it.entityPair.first.entityKeyId }.toTypedArray()))
+                ps.setArray(3, connection.createArrayOf("uuid", rows.map { it.entityPair.second.entitySetId }.toTypedArray()))
+                ps.setArray(4, connection.createArrayOf("uuid", rows.map { it.entityPair.second.entityKeyId }.toTypedArray()))
+                ps.setArray(5, connection.createArrayOf("boolean", rows.map { it.linked }.toTypedArray()))
+                ps.executeUpdate()
+            }
+        }
+    }
+}
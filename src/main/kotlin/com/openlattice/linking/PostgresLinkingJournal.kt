@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.data.EntityDataKey
+import com.openlattice.postgres.PostgresColumnDefinition
+import com.openlattice.postgres.PostgresDatatype
+import com.openlattice.postgres.PostgresTableDefinition
+import com.zaxxer.hikari.HikariDataSource
+import org.slf4j.LoggerFactory
+import java.util.*
+
+/**
+ * Journal rows younger than this are never considered orphaned, so that nodes that just started are seen as alive by
+ * every other node before their work can be claimed.
+ */
+private const val ORPHAN_GRACE_MILLIS = 15_000L
+
+private val ENTITY_SET_ID = PostgresColumnDefinition("entity_set_id", PostgresDatatype.UUID).notNull()
+private val ID = PostgresColumnDefinition("id", PostgresDatatype.UUID).notNull()
+private val NODE_ID = PostgresColumnDefinition("node_id", PostgresDatatype.UUID).notNull()
+private val STAGE = PostgresColumnDefinition("stage", PostgresDatatype.TEXT).notNull()
+private val BLOCK_ENTITY_SET_IDS = PostgresColumnDefinition("block_entity_set_ids", PostgresDatatype.UUID_ARRAY)
+private val BLOCK_ENTITY_KEY_IDS = PostgresColumnDefinition("block_entity_key_ids", PostgresDatatype.UUID_ARRAY)
+private val BLOCK_SCORES = PostgresColumnDefinition("block_scores", PostgresDatatype.DOUBLE_ARRAY)
+private val UPDATED_AT = PostgresColumnDefinition("updated_at", PostgresDatatype.TIMESTAMPTZ)
+        .notNull()
+        .withDefault("now()")
+
+/**
+ * One row per candidate being linked, keyed by the entity data key of the candidate.
+ */
+val LINKING_JOURNAL: PostgresTableDefinition = PostgresTableDefinition("linking_journal")
+        .addColumns(
+                ENTITY_SET_ID,
+                ID,
+                NODE_ID,
+                STAGE,
+                BLOCK_ENTITY_SET_IDS,
+                BLOCK_ENTITY_KEY_IDS,
+                BLOCK_SCORES,
+                UPDATED_AT
+        )
+        .primaryKey(ENTITY_SET_ID, ID)
+
+private val RECORD_STAGE_SQL = "INSERT INTO ${LINKING_JOURNAL.name} " +
+        "(${ENTITY_SET_ID.name}, ${ID.name}, ${NODE_ID.name}, ${STAGE.name}, ${BLOCK_ENTITY_SET_IDS.name}, " +
+        "${BLOCK_ENTITY_KEY_IDS.name}, ${BLOCK_SCORES.name}, ${UPDATED_AT.name}) " +
+        "VALUES (?, ?, ?, ?, ?, ?, ?, now()) " +
+        "ON CONFLICT (${ENTITY_SET_ID.name}, ${ID.name}) DO UPDATE SET " +
+        "${NODE_ID.name} = EXCLUDED.${NODE_ID.name}, " +
+        "${STAGE.name} = EXCLUDED.${STAGE.name}, " +
+        "${BLOCK_ENTITY_SET_IDS.name} = EXCLUDED.${BLOCK_ENTITY_SET_IDS.name}, " +
+        "${BLOCK_ENTITY_KEY_IDS.name} = EXCLUDED.${BLOCK_ENTITY_KEY_IDS.name}, " +
+        "${BLOCK_SCORES.name} = EXCLUDED.${BLOCK_SCORES.name}, " +
+        "${UPDATED_AT.name} = EXCLUDED.${UPDATED_AT.name}"
+
+private val COMPLETE_SQL = "DELETE FROM ${LINKING_JOURNAL.name} " +
+        "WHERE ${ENTITY_SET_ID.name} = ? AND ${ID.name} = ? AND ${NODE_ID.name} = ?"
+
+private val ORPHANED_CONDITION = "NOT (${NODE_ID.name} = ANY(?)) " +
+        "AND ${UPDATED_AT.name} < now() - (? * interval '1 millisecond')"
+
+private val SELECT_ORPHANED_SQL = "SELECT ${ENTITY_SET_ID.name}, ${ID.name} FROM ${LINKING_JOURNAL.name} " +
+        "WHERE $ORPHANED_CONDITION ORDER BY ${UPDATED_AT.name} LIMIT ?"
+
+private val CLAIM_SQL = "DELETE FROM ${LINKING_JOURNAL.name} " +
+        "WHERE ${ENTITY_SET_ID.name} = ? AND ${ID.name} = ? AND $ORPHANED_CONDITION " +
+        "RETURNING ${STAGE.name}, ${BLOCK_ENTITY_SET_IDS.name}, ${BLOCK_ENTITY_KEY_IDS.name}, ${BLOCK_SCORES.name}"
+
+/**
+ * Keeps the linking journal in Postgres. Every candidate has at most one row, owned by the node that last recorded a
+ * stage for it, and claiming an orphaned candidate deletes its row atomically.
+ *
+ * Failures to record are logged instead of failing the link, since the journal only speeds up recovery.
+ */
+class PostgresLinkingJournal(
+        private val hds: HikariDataSource,
+        private val nodeId: UUID,
+        metricRegistry: MetricRegistry
+) : LinkingJournal {
+    companion object {
+        private val logger = LoggerFactory.getLogger(PostgresLinkingJournal::class.java)
+    }
+
+    private val failures = metricRegistry.counter(MetricRegistry.name(PostgresLinkingJournal::class.java, "failures"))
+
+    init {
+        hds.connection.use { connection ->
+            connection.createStatement().use { it.execute(LINKING_JOURNAL.createTableQuery()) }
+        }
+    }
+
+    override fun record(candidate: EntityDataKey, stage: LinkingStage, initialScores: Map<EntityDataKey, Double>) {
+        try {
+            val block = initialScores.entries.toList()
+            hds.connection.use { connection ->
+                connection.prepareStatement(RECORD_STAGE_SQL).use { ps ->
+                    ps.setObject(1, candidate.entitySetId)
+                    ps.setObject(2, candidate.entityKeyId)
+                    ps.setObject(3, nodeId)
+                    ps.setString(4, stage.name)
+                    ps.setArray(5, connection.createArrayOf("uuid", block.map { it.key.entitySetId }.toTypedArray()))
+                    ps.setArray(6, connection.createArrayOf("uuid", block.map { it.key.entityKeyId }.toTypedArray()))
+                    ps.setArray(7, connection.createArrayOf("float8", block.map { it.value }.toTypedArray()))
+                    ps.executeUpdate()
+                }
+            }
+        } catch (ex: Exception) {
+            failures.inc()
+            logger.error("Unable to record stage {} of linking candidate {}", stage, candidate, ex)
+        }
+    }
+
+    override fun complete(candidate: EntityDataKey) {
+        try {
+            hds.connection.use { connection ->
+                connection.prepareStatement(COMPLETE_SQL).use { ps ->
+                    ps.setObject(1, candidate.entitySetId)
+                    ps.setObject(2, candidate.entityKeyId)
+                    ps.setObject(3, nodeId)
+                    ps.executeUpdate()
+                }
+            }
+        } catch (ex: Exception) {
+            failures.inc()
+            logger.error("Unable to record completion of linking candidate {}", candidate, ex)
+        }
+    }
+
+    override fun getOrphaned(liveNodes: Collection<UUID>, limit: Int): List<EntityDataKey> {
+        return hds.connection.use { connection ->
+            connection.prepareStatement(SELECT_ORPHANED_SQL).use { ps ->
+                ps.setArray(1, connection.createArrayOf("uuid", liveNodes.toTypedArray()))
+                ps.setLong(2, ORPHAN_GRACE_MILLIS)
+                ps.setInt(3, limit)
+                ps.executeQuery().use { rs ->
+                    val orphaned = mutableListOf<EntityDataKey>()
+                    while (rs.next()) {
+                        orphaned.add(EntityDataKey(rs.getObject(1, UUID::class.java), rs.getObject(2, UUID::class.java)))
+                    }
+                    orphaned
+                }
+            }
+        }
+    }
+
+    override fun claim(candidate: EntityDataKey, liveNodes: Collection<UUID>): LinkingCheckpoint? {
+        return hds.connection.use { connection ->
+            connection.prepareStatement(CLAIM_SQL).use { ps ->
+                ps.setObject(1, candidate.entitySetId)
+                ps.setObject(2, candidate.entityKeyId)
+                ps.setArray(3, connection.createArrayOf("uuid", liveNodes.toTypedArray()))
+                ps.setLong(4, ORPHAN_GRACE_MILLIS)
+                ps.executeQuery().use { rs ->
+                    if (!rs.next()) {
+                        return@use null
+                    }
+                    @Suppress("UNCHECKED_CAST")
+                    val entitySetIds = (rs.getArray(2)?.array as Array<UUID>?) ?: arrayOf()
+                    @Suppress("UNCHECKED_CAST")
+                    val entityKeyIds = (rs.getArray(3)?.array as Array<UUID>?) ?: arrayOf()
+                    @Suppress("UNCHECKED_CAST")
+                    val scores = (rs.getArray(4)?.array as Array<Double>?) ?: arrayOf()
+                    LinkingCheckpoint(
+                            candidate,
+                            LinkingStage.valueOf(rs.getString(1)),
+                            entitySetIds.indices.associate { EntityDataKey(entitySetIds[it], entityKeyIds[it]) to scores[it] }
+                    )
+                }
+            }
+        }
+    }
+}
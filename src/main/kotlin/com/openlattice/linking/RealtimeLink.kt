@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.fasterxml.jackson.annotation.JsonProperty
+import java.util.*
+
+const val DEFAULT_REALTIME_LINK_BUDGET_MILLIS = 100L
+
+/**
+ * A request to link a single record synchronously.
+ *
+ * @param entitySetId The entity set the record belongs to.
+ * @param entityKeyId The entity key id of an existing record. Required when [persist] is true.
+ * @param entity The properties of the record. Loaded from the database if not provided. Cannot be persisted.
+ * @param persist Whether to link the record in the linking graph or only find the linking id it would be assigned.
+ * @param budgetMillis The latency budget for finding the linking id of a record that is not persisted.
+ */
+data class RealtimeLinkRequest(
+        @JsonProperty("entitySetId") val entitySetId: UUID,
+        @JsonProperty("entityKeyId") val entityKeyId: Optional<UUID> = Optional.empty(),
+        @JsonProperty("entity") val entity: Optional<Map<UUID, Set<Any>>> = Optional.empty(),
+        @JsonProperty("persist") val persist: Boolean = false,
+        @JsonProperty("budgetMillis") val budgetMillis: Long = DEFAULT_REALTIME_LINK_BUDGET_MILLIS
+) {
+    init {
+        require(entityKeyId.isPresent || entity.isPresent) { "Either an entity key id or an entity must be provided." }
+        require(!persist || entityKeyId.isPresent) { "Only existing entities can be persisted." }
+        require(!persist || !entity.isPresent) { "Persisted entities are linked using their stored properties." }
+    }
+}
+
+/**
+ * @param linkingId The linking id of the record or null if it did not match any existing cluster.
+ * @param score The complete link score of the record in the cluster, if it was not persisted.
+ * @param persisted Whether the record was linked in the linking graph.
+ * @param budgetExceeded Whether the latency budget was exhausted before a decision could be made.
+ * @param elapsedMillis The time it took to process the request.
+ */
+data class RealtimeLinkResult(
+        @JsonProperty("linkingId") val linkingId: UUID?,
+        @JsonProperty("score") val score: Double?,
+        @JsonProperty("persisted") val persisted: Boolean,
+        @JsonProperty("budgetExceeded") val budgetExceeded: Boolean,
+        @JsonProperty("elapsedMillis") val elapsedMillis: Long
+)
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.fasterxml.jackson.annotation.JsonProperty
+import com.openlattice.data.EntityDataKey
+import java.util.*
+
+/**
+ * A pair of entities to score. Each side is either an existing entity, referenced by data key, or an inline entity.
+ */
+data class ScoringPair(
+        @JsonProperty("first") val first: EntityDataKey? = null,
+        @JsonProperty("second") val second: EntityDataKey? = null,
+        @JsonProperty("lhs") val lhs: Map<UUID, Set<Any>>? = null,
+        @JsonProperty("rhs") val rhs: Map<UUID, Set<Any>>? = null
+)
+
+/**
+ * @param index The position of the pair in the request.
+ * @param score The match score of the pair or null if it could not be scored.
+ * @param error Why the pair could not be scored, such as a missing entity or missing read access to its entity set.
+ */
+data class ScoredPair(
+        @JsonProperty("index") val index: Int,
+        @JsonProperty("first") val first: EntityDataKey?,
+        @JsonProperty("second") val second: EntityDataKey?,
+        @JsonProperty("score") val score: Double?,
+        @JsonProperty("error") val error: String? = null
+)
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.openlattice.data.EntityDataKey
+import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+private const val PUBLISH_TIMEOUT_MILLIS = 100L
+
+/**
+ * A block whose entities are handed to the consumer in batches as they are loaded, so that matching can start before
+ * blocking has finished loading.
+ *
+ * Batches are produced by one producer per entity set and buffered in a bounded queue, so producers wait when the
+ * consumer falls behind. A block can only be iterated once and must be closed, which releases producers that are still
+ * waiting to publish.
+ *
+ * @param candidate The entity the block was built around.
+ * @param candidateEntity The properties of the candidate, which are known before loading starts.
+ * @param rankedKeys The keys of the block, ordered by rank within each entity set.
+ * @param producers The number of producers that will complete or fail.
+ * @param bufferSize The number of batches that may be waiting for the consumer.
+ */
+class StreamingBlock(
+        val candidate: EntityDataKey,
+        val candidateEntity: Map<UUID, Set<Any>>,
+        private val rankedKeys: List<EntityDataKey>,
+        private val producers: Int,
+        bufferSize: Int
+) : Iterable<List<Pair<EntityDataKey, Map<UUID, Set<Any>>>>>, AutoCloseable {
+    companion object {
+        /**
+         * Wraps a block that has already been loaded.
+         */
+        @JvmStatic
+        fun of(block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>): StreamingBlock {
+            val streamingBlock = StreamingBlock(
+                    block.first,
+                    block.second.getValue(block.first),
+                    block.second.keys.toList(),
+                    1,
+                    1
+            )
+            streamingBlock.publish(block.second.entries.map { it.key to it.value })
+            streamingBlock.complete()
+            return streamingBlock
+        }
+    }
+
+    private val queue = ArrayBlockingQueue<BlockMessage>(Math.max(bufferSize, producers + 1))
+    private val loaded = mutableMapOf<EntityDataKey, Map<UUID, Set<Any>>>()
+    private var iterated = false
+
+    @Volatile
+    private var closed = false
+
+    /**
+     * Hands a batch of loaded entities to the consumer, waiting while the buffer is full.
+     *
+     * @return False if the block was closed and the producer should stop loading.
+     */
+    fun publish(batch: List<Pair<EntityDataKey, Map<UUID, Set<Any>>>>): Boolean {
+        val message = Entities(batch)
+        while (!closed) {
+            if (queue.offer(message, PUBLISH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Signals that a producer has published all of its entities.
+     */
+    fun complete() {
+        finish(Done)
+    }
+
+    /**
+     * Signals that a producer failed. The failure is rethrown to the consumer.
+     */
+    fun fail(ex: Throwable) {
+        finish(Failure(ex))
+    }
+
+    /**
+     * Iterates over batches of loaded entities, starting with a batch containing only the candidate. The candidate is
+     * not repeated in later batches.
+     */
+    @Synchronized
+    override fun iterator(): Iterator<List<Pair<EntityDataKey, Map<UUID, Set<Any>>>>> {
+        check(!iterated) { "Streaming block for $candidate can only be iterated once." }
+        iterated = true
+        loaded[candidate] = candidateEntity
+
+        return object : AbstractIterator<List<Pair<EntityDataKey, Map<UUID, Set<Any>>>>>() {
+            private var first = true
+            private var completed = 0
+
+            override fun computeNext() {
+                if (first) {
+                    first = false
+                    setNext(listOf(candidate to candidateEntity))
+                    return
+                }
+                while (completed < producers) {
+                    when (val message = queue.take()) {
+                        is Entities -> {
+                            val batch = message.entities.filter { it.first != candidate }
+                            batch.forEach { loaded[it.first] = it.second }
+                            if (batch.isNotEmpty()) {
+                                setNext(batch)
+                                return
+                            }
+                        }
+                        is Failure -> throw IllegalStateException("Unable to load block for $candidate", message.ex)
+                        Done -> completed++
+                    }
+                }
+                done()
+            }
+        }
+    }
+
+    /**
+     * @return The whole block in rank order, after any batches that have not been consumed yet were loaded.
+     */
+    fun toBlock(): Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>> {
+        if (!iterated) {
+            forEach { _ -> }
+        }
+        val block = rankedKeys
+                .mapNotNull { dataKey -> loaded[dataKey]?.let { dataKey to it } }
+                .toMap() + (candidate to candidateEntity)
+        return candidate to block
+    }
+
+    override fun close() {
+        closed = true
+        queue.clear()
+    }
+
+    private fun finish(message: BlockMessage) {
+        //The queue always has room for one final message per producer, unless the consumer stopped consuming.
+        while (!closed && !queue.offer(message, PUBLISH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        }
+    }
+}
+
+private sealed class BlockMessage
+
+private class Entities(val entities: List<Pair<EntityDataKey, Map<UUID, Set<Any>>>>) : BlockMessage()
+
+private class Failure(val ex: Throwable) : BlockMessage()
+
+private object Done : BlockMessage()
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.blocking
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.LinkingConfiguration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * The fraction of matches in an entity set that should fall within its block depth.
+ */
+private const val MATCH_RANK_QUANTILE = 0.99
+
+/**
+ * Headroom above the observed match rank, which also lets the depth grow when matches are found close to it.
+ */
+private const val DEPTH_HEADROOM = 1.5
+
+/**
+ * Decides how many search results to keep from each entity set when blocking.
+ *
+ * Static overrides from the configuration always apply. Otherwise, when adaptive block depth is enabled, the depth of
+ * an entity set is derived from the ranks at which matches were found in it, within the configured bounds, once
+ * enough matches have been observed.
+ */
+class AdaptiveBlockDepth(configuration: LinkingConfiguration, private val metricRegistry: MetricRegistry) {
+    private val adaptive = configuration.adaptiveBlockDepth
+    private val minimumDepth = configuration.minimumBlockDepth
+    private val maximumDepth = configuration.maximumBlockDepth
+    private val minimumObservations = configuration.blockDepthObservations
+    private val overrides = configuration.blockDepthOverrides
+
+    private val ranks = ConcurrentHashMap<UUID, AtomicLongArray>()
+
+    /**
+     * @return The number of results to request from the search, which is enough for the deepest entity set.
+     */
+    fun getSearchDepth(top: Int): Int {
+        return (overrides.values + if (adaptive) maximumDepth else top).max()!!
+    }
+
+    /**
+     * @param top The number of results requested by the caller, which applies unless the depth is adaptive.
+     * @return The number of results to keep for an entity set.
+     */
+    fun getDepth(entitySetId: UUID, top: Int): Int {
+        val override = overrides[entitySetId]
+        if (override != null) {
+            return override
+        }
+        if (!adaptive) {
+            return top
+        }
+        return learnedDepth(entitySetId) ?: maximumDepth
+    }
+
+    /**
+     * Keeps the top results of each entity set according to its depth, without ever dropping the candidate itself.
+     *
+     * @param searchResults The search results per entity set, ordered by rank.
+     */
+    fun truncate(
+            candidate: EntityDataKey,
+            searchResults: Map<UUID, Set<UUID>>,
+            top: Int
+    ): Map<UUID, Set<UUID>> {
+        return searchResults.mapValues { (entitySetId, entityKeyIds) ->
+            val depth = getDepth(entitySetId, top)
+            if (entityKeyIds.size <= depth) {
+                entityKeyIds
+            } else {
+                val kept = entityKeyIds.asSequence().take(depth).toMutableSet()
+                if (entitySetId == candidate.entitySetId && entityKeyIds.contains(candidate.entityKeyId)) {
+                    kept.add(candidate.entityKeyId)
+                }
+                kept
+            }
+        }
+    }
+
+    /**
+     * Records the ranks at which matches were found in a block.
+     *
+     * @param block The entities of the block, ordered by rank within each entity set.
+     * @param matches The entities of the block that matched the candidate.
+     */
+    fun record(candidate: EntityDataKey, block: Iterable<EntityDataKey>, matches: Set<EntityDataKey>) {
+        val positions = mutableMapOf<UUID, Int>()
+        block.forEach { dataKey ->
+            val rank = positions.getOrDefault(dataKey.entitySetId, 0)
+            positions[dataKey.entitySetId] = rank + 1
+            if (dataKey != candidate && matches.contains(dataKey)) {
+                getRanks(dataKey.entitySetId).incrementAndGet(Math.min(rank, maximumDepth - 1))
+            }
+        }
+    }
+
+    private fun learnedDepth(entitySetId: UUID): Int? {
+        val histogram = ranks[entitySetId] ?: return null
+        val counts = (0 until histogram.length()).map { histogram.get(it) }
+        val observations = counts.sum()
+        if (observations < minimumObservations) {
+            return null
+        }
+
+        var seen = 0L
+        val quantileRank = counts.indexOfFirst { count ->
+            seen += count
+            seen >= MATCH_RANK_QUANTILE * observations
+        }
+        return Math.ceil((quantileRank + 1) * DEPTH_HEADROOM).toInt().coerceIn(minimumDepth, maximumDepth)
+    }
+
+    private fun getRanks(entitySetId: UUID): AtomicLongArray {
+        return ranks.computeIfAbsent(entitySetId) {
+            metricRegistry.register(
+                    MetricRegistry.name(AdaptiveBlockDepth::class.java, "depth", entitySetId.toString()),
+                    Gauge<Int> { getDepth(entitySetId, maximumDepth) }
+            )
+            AtomicLongArray(maximumDepth)
+        }
+    }
+}
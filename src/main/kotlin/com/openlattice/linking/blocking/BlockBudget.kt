@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.blocking
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.LinkingConfiguration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The estimated size of an entity from an entity set none of whose entities have been loaded yet.
+ */
+private const val DEFAULT_ENTITY_BYTES = 1024L
+
+/**
+ * Rough per object overheads used when estimating the size of a loaded entity.
+ */
+private const val PROPERTY_OVERHEAD_BYTES = 64L
+private const val VALUE_OVERHEAD_BYTES = 48L
+
+/**
+ * How to score a candidate against an existing cluster with more members than the block size.
+ */
+enum class OversizedClusterPolicy {
+    /**
+     * Score the candidate against every member of the cluster.
+     */
+    SCORE_ALL,
+
+    /**
+     * Score the candidate against the members that scored best during initialization, followed by the members with the
+     * best mean score within the cluster, up to the block size.
+     */
+    TRUNCATE,
+
+    /**
+     * Do not consider the cluster for the candidate.
+     */
+    SKIP
+}
+
+/**
+ * Enforces the block size across blocking, loading and matching.
+ *
+ * Search results are truncated before loading to the configured number of entities and to the estimated number of
+ * bytes, keeping the highest ranked results by visiting entity sets round robin by rank. Estimates are learned per
+ * entity set from the entities that are loaded, and loading of lower ranked entities stops early if a block exceeds
+ * the byte budget anyway.
+ * Clusters with more members than the block size are handled according to the [OversizedClusterPolicy].
+ */
+class BlockBudget(configuration: LinkingConfiguration, metricRegistry: MetricRegistry) {
+    val maximumEntities = configuration.blockSize
+    val maximumBytes = configuration.blockBytes
+    val clusterPolicy = configuration.oversizedClusterPolicy
+
+    private val bytesPerEntity = ConcurrentHashMap<UUID, Long>()
+
+    private val blockEntities = metricRegistry.histogram(MetricRegistry.name(BlockBudget::class.java, "entities"))
+    private val truncatedBlocks = metricRegistry.counter(MetricRegistry.name(BlockBudget::class.java, "truncated"))
+    private val truncatedEntities = metricRegistry.counter(
+            MetricRegistry.name(BlockBudget::class.java, "truncated", "entities")
+    )
+    private val overBudgetLoads = metricRegistry.counter(MetricRegistry.name(BlockBudget::class.java, "overBudget"))
+    private val oversizedClusters = metricRegistry.counter(
+            MetricRegistry.name(BlockBudget::class.java, "oversizedClusters")
+    )
+
+    /**
+     * Keeps the highest ranked search results that fit in the budget, always leaving room for the candidate.
+     *
+     * @param searchResults The search results per entity set, ordered by rank.
+     * @return The kept search results per entity set, in their original order.
+     */
+    fun truncate(candidate: EntityDataKey, searchResults: Map<UUID, Set<UUID>>): Map<UUID, Set<UUID>> {
+        val total = searchResults.values.sumBy { it.size }
+        val estimatedBytes = searchResults.entries.map { it.value.size * getEntityBytes(it.key) }.sum()
+        if (total <= maximumEntities && estimatedBytes <= maximumBytes) {
+            blockEntities.update(total)
+            return searchResults
+        }
+
+        var entities = 1
+        var bytes = getEntityBytes(candidate.entitySetId)
+        val kept = mutableSetOf(candidate)
+        val rankedEntityKeyIds = searchResults.mapValues { it.value.iterator() }
+
+        round@ while (rankedEntityKeyIds.values.any { it.hasNext() }) {
+            for ((entitySetId, entityKeyIds) in rankedEntityKeyIds) {
+                if (!entityKeyIds.hasNext()) {
+                    continue
+                }
+                val dataKey = EntityDataKey(entitySetId, entityKeyIds.next())
+                if (dataKey == candidate) {
+                    continue
+                }
+                val entityBytes = getEntityBytes(entitySetId)
+                if (entities + 1 > maximumEntities || bytes + entityBytes > maximumBytes) {
+                    break@round
+                }
+                kept.add(dataKey)
+                entities++
+                bytes += entityBytes
+            }
+        }
+
+        val truncated = searchResults
+                .mapValues { (entitySetId, entityKeyIds) ->
+                    entityKeyIds.filterTo(LinkedHashSet()) { kept.contains(EntityDataKey(entitySetId, it)) }
+                }
+                .filterValues { it.isNotEmpty() }
+        val keptEntities = truncated.values.sumBy { it.size }
+        truncatedBlocks.inc()
+        truncatedEntities.inc((total - keptEntities).toLong())
+        blockEntities.update(keptEntities)
+        return truncated
+    }
+
+    /**
+     * Starts tracking the bytes loaded for a block.
+     */
+    fun startLoading(): BlockLoad {
+        return BlockLoad()
+    }
+
+    /**
+     * Limits the members of an existing cluster that a candidate is scored against.
+     *
+     * @param initialScores The initialization scores of the candidate against the entities in its block. Most members
+     * of an existing cluster are usually not in the block.
+     * @return The cluster to score, or null if the cluster should not be considered.
+     */
+    fun limitCluster(
+            cluster: Map<EntityDataKey, Map<EntityDataKey, Double>>,
+            initialScores: Map<EntityDataKey, Double>
+    ): Map<EntityDataKey, Map<EntityDataKey, Double>>? {
+        val members = cluster.keys + cluster.values.flatMap { it.keys }
+        if (members.size <= maximumEntities) {
+            return cluster
+        }
+
+        oversizedClusters.inc()
+        return when (clusterPolicy) {
+            OversizedClusterPolicy.SCORE_ALL -> cluster
+            OversizedClusterPolicy.SKIP -> null
+            OversizedClusterPolicy.TRUNCATE -> {
+                val meanScores = getMeanScores(cluster)
+                val kept = members
+                        .sortedWith(
+                                compareByDescending<EntityDataKey> { initialScores[it] ?: -1.0 }
+                                        .thenByDescending { meanScores[it] ?: 0.0 }
+                        )
+                        .take(maximumEntities - 1)
+                        .toSet()
+                cluster.filterKeys(kept::contains).mapValues { it.value.filterKeys(kept::contains) }
+            }
+        }
+    }
+
+    /**
+     * @return The mean score of each member of a cluster against the other members it has been scored against.
+     */
+    private fun getMeanScores(cluster: Map<EntityDataKey, Map<EntityDataKey, Double>>): Map<EntityDataKey, Double> {
+        val scores = mutableMapOf<EntityDataKey, MutableList<Double>>()
+        cluster.forEach { (src, dsts) ->
+            dsts.forEach { (dst, score) ->
+                if (src != dst) {
+                    scores.getOrPut(src) { mutableListOf() }.add(score)
+                    scores.getOrPut(dst) { mutableListOf() }.add(score)
+                }
+            }
+        }
+        return scores.mapValues { it.value.average() }
+    }
+
+    private fun getEntityBytes(entitySetId: UUID): Long {
+        return bytesPerEntity[entitySetId] ?: DEFAULT_ENTITY_BYTES
+    }
+
+    private fun record(entitySetId: UUID, entityBytes: Long) {
+        bytesPerEntity.merge(entitySetId, entityBytes) { estimate, observed -> (7 * estimate + observed) / 8 }
+    }
+
+    /**
+     * Tracks the bytes loaded for a single block, which may be loaded from several threads.
+     */
+    inner class BlockLoad {
+        private val bytes = AtomicLong()
+
+        @Volatile
+        private var exceeded = false
+
+        /**
+         * Accounts for a loaded entity.
+         */
+        fun add(entitySetId: UUID, entity: Map<UUID, Set<Any>>) {
+            val entityBytes = estimateBytes(entity)
+            record(entitySetId, entityBytes)
+            if (bytes.addAndGet(entityBytes) > maximumBytes && !exceeded) {
+                exceeded = true
+                overBudgetLoads.inc()
+            }
+        }
+
+        /**
+         * @return True if the block no longer fits in the byte budget, in which case loading should stop.
+         */
+        fun isExceeded(): Boolean {
+            return exceeded
+        }
+    }
+}
+
+internal fun estimateBytes(entity: Map<UUID, Set<Any>>): Long {
+    return entity.values.map { values ->
+        PROPERTY_OVERHEAD_BYTES + values.map { VALUE_OVERHEAD_BYTES + 2L * it.toString().length }.sum()
+    }.sum()
+}
@@ -21,9 +21,14 @@
 
 package com.openlattice.linking.blocking
 
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
 import com.codahale.metrics.annotation.Timed
 import com.google.common.base.Stopwatch
 import com.google.common.base.Suppliers
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.hazelcast.core.HazelcastInstance
 import com.hazelcast.query.Predicates
 import com.openlattice.conductor.rpc.ConductorElasticsearchApi
@@ -31,12 +36,14 @@ import com.openlattice.data.EntityDataKey
 import com.openlattice.edm.EntitySet
 import com.openlattice.hazelcast.HazelcastMap
 import com.openlattice.linking.*
+import com.openlattice.linking.monitoring.BlockEvent
 import com.openlattice.linking.util.PersonProperties
 import com.openlattice.postgres.mapstores.EntityTypeMapstore
 import com.openlattice.rhizome.hazelcast.DelegatedStringSet
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Component
 import java.util.*
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 import kotlin.streams.asSequence
 
@@ -50,8 +57,11 @@ private val logger = LoggerFactory.getLogger(ElasticsearchBlocker::class.java)
 class ElasticsearchBlocker(
         private val elasticsearch: ConductorElasticsearchApi,
         private val dataLoader: DataLoader,
-        private val linkingFeedbackService: PostgresLinkingFeedbackService,
-        hazelcast: HazelcastInstance
+        private val feedbackIndex: LinkingFeedbackIndex,
+        private val blockBudget: BlockBudget,
+        hazelcast: HazelcastInstance,
+        configuration: LinkingConfiguration,
+        metricRegistry: MetricRegistry
 ) : Blocker {
 
     private val entitySets = HazelcastMap.ENTITY_SETS.getMap( hazelcast )
@@ -68,30 +78,156 @@ class ElasticsearchBlocker(
                         .map(EntitySet::getId)
             }, 1000, TimeUnit.MILLISECONDS)
 
+    /**
+     * Recent search results by field searches and number of results. Concurrent identical searches wait for a single
+     * request to elasticsearch.
+     */
+    private val searchCache: Cache<BlockingSearch, Map<UUID, Set<UUID>>> = CacheBuilder.newBuilder()
+            .maximumSize(configuration.blockingCacheSize)
+            .expireAfterWrite(configuration.blockingCacheTtlMillis, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build()
+    private val blockDepth = AdaptiveBlockDepth(configuration, metricRegistry)
+    private val staleSearches = metricRegistry.counter(
+            MetricRegistry.name(ElasticsearchBlocker::class.java, "searchCache", "stale")
+    )
+
+    init {
+        metricRegistry.register(
+                MetricRegistry.name(ElasticsearchBlocker::class.java, "searchCache", "hitRate"),
+                Gauge<Double> { searchCache.stats().hitRate() }
+        )
+        metricRegistry.register(
+                MetricRegistry.name(ElasticsearchBlocker::class.java, "searchCache", "size"),
+                Gauge<Long> { searchCache.size() }
+        )
+    }
+
+    /**
+     * Loads entity sets of streaming blocks. Loaders wait while the consumer of their block falls behind, so they do not
+     * run on shared pools.
+     */
+    private val blockLoaders = Executors.newFixedThreadPool(
+            configuration.blockLoadingParallelism,
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("block-loader-%d").build()
+    )
+    private val blockLoadingBatchSize = configuration.blockLoadingBatchSize
+    private val blockLoadingBuffer = configuration.blockLoadingBuffer
+
     @Timed
     override fun block(
             entityDataKey: EntityDataKey,
             entity: Optional<Map<UUID, Set<Any>>>,
             top: Int
     ): Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>> {
-        logger.info("Blocking for entity data key {}", entityDataKey)
+        val event = BlockEvent()
+        event.begin()
+        val (candidateEntity, rankedSearchResults) = search(entityDataKey, entity, top)
 
         val sw = Stopwatch.createStarted()
-        var blockedEntitySetSearchResults = elasticsearch.executeBlockingSearch(
-                personEntityType.id,
-                getFieldSearches(entity.orElseGet { dataLoader.getEntity(entityDataKey) }),
-                top,
-                false
+        val load = blockBudget.startLoading()
+        val loadedEntities = rankedSearchResults
+                .entries
+                .parallelStream()
+                .flatMap { entry -> loadRanked(entry.key, entry.value, load).flatten().toList().stream() }
+                .asSequence()
+                .toMap()
+
+        //Keep the block in rank order within each entity set, so that the ranks of matches can be recorded.
+        val loadedData = entityDataKey to rankKeys(rankedSearchResults)
+                .mapNotNull { dataKey -> loadedEntities[dataKey]?.let { dataKey to it } }
+                .toMap() + (entityDataKey to candidateEntity)
+
+        logger.info(
+                "Loading {} entities took {} ms.", loadedData.second.values.map { it.size }.sum(),
+                sw.elapsed(TimeUnit.MILLISECONDS)
+        )
+
+        event.end()
+        if (event.shouldCommit()) {
+            event.candidate(entityDataKey)
+            event.blockSize = loadedData.second.size
+            event.commit()
+        }
+        return loadedData
+
+    }
+
+    /**
+     * Loads each entity set of the block on its own loader, publishing batches of entities as they are read.
+     */
+    @Timed
+    override fun streamBlock(
+            entityDataKey: EntityDataKey,
+            entity: Optional<Map<UUID, Set<Any>>>,
+            top: Int
+    ): StreamingBlock {
+        val event = BlockEvent()
+        event.begin()
+        val (candidateEntity, rankedSearchResults) = search(entityDataKey, entity, top)
+        val streamingBlock = StreamingBlock(
+                entityDataKey,
+                candidateEntity,
+                rankKeys(rankedSearchResults),
+                rankedSearchResults.size,
+                blockLoadingBuffer
         )
 
+        val load = blockBudget.startLoading()
+        rankedSearchResults.forEach { (entitySetId, entityKeyIds) ->
+            blockLoaders.execute {
+                try {
+                    loadRanked(entitySetId, entityKeyIds, load).all(streamingBlock::publish)
+                    streamingBlock.complete()
+                } catch (ex: Exception) {
+                    logger.error("Unable to load entity set {} for block {}.", entitySetId, entityDataKey, ex)
+                    streamingBlock.fail(ex)
+                }
+            }
+        }
+
+        event.end()
+        if (event.shouldCommit()) {
+            event.candidate(entityDataKey)
+            event.blockSize = rankedSearchResults.values.sumBy { it.size }
+            event.streaming = true
+            event.commit()
+        }
+        return streamingBlock
+    }
+
+    /**
+     * Searches for the block of an entity.
+     *
+     * @return The properties of the entity and the ranked search results per entity set, after truncation and removal
+     * of negative feedback.
+     */
+    private fun search(
+            entityDataKey: EntityDataKey,
+            entity: Optional<Map<UUID, Set<Any>>>,
+            top: Int
+    ): Pair<Map<UUID, Set<Any>>, Map<UUID, Set<UUID>>> {
+        logger.info("Blocking for entity data key {}", entityDataKey)
+
+        val sw = Stopwatch.createStarted()
+        val candidateEntity = entity.orElseGet { dataLoader.getEntity(entityDataKey) }
+        val search = BlockingSearch(getFieldSearches(candidateEntity), blockDepth.getSearchDepth(top))
+        val cached = searchCache.getIfPresent(search)
+        if (cached != null && !entity.isPresent && !containsEntity(cached, entityDataKey)) {
+            //Results cached before the entity was indexed are missing the entity itself.
+            staleSearches.inc()
+            searchCache.invalidate(search)
+        }
+        var blockedEntitySetSearchResults = executeSearch(search)
+
         logger.info(
                 "Entity data key {} blocked to {} elements in {} ms.", entityDataKey,
                 blockedEntitySetSearchResults.values.map { it.size }.sum(),
                 sw.elapsed(TimeUnit.MILLISECONDS)
         )
 
-        val selfBlock: MutableSet<UUID>? = blockedEntitySetSearchResults[entityDataKey.entitySetId]
-        if (selfBlock == null || !selfBlock.contains(entityDataKey.entityKeyId)) {
+        //Entities provided by the caller do not have to be indexed, so they are not expected to block to themselves.
+        if (!entity.isPresent && !containsEntity(blockedEntitySetSearchResults, entityDataKey)) {
             logger.error("Entity {} did not block to itself.", entityDataKey)
             /*
              * We're going to assume there is something pathological about elements that do not block to themselves.
@@ -102,34 +238,72 @@ class ElasticsearchBlocker(
              * (example: only 1 property has value)
              * If it cannot block to itself, we add link it to itself
              */
-            blockedEntitySetSearchResults = mutableMapOf(
-                    entityDataKey.entitySetId to mutableSetOf(entityDataKey.entityKeyId))
+            blockedEntitySetSearchResults = mapOf(entityDataKey.entitySetId to setOf(entityDataKey.entityKeyId))
         }
 
-        sw.reset()
-        sw.start()
-
-        val loadedData = entityDataKey to
-                removeNegativeFeedbackFromSearchResult(entityDataKey, blockedEntitySetSearchResults)
-                        .filter { it.value.isNotEmpty() }
-                        .entries
-                        .parallelStream()
-                        .flatMap { entry ->
-                            dataLoader
-                                    .getEntityStream(entry.key, entry.value)
-                                    .stream()
-                                    .map { EntityDataKey(entry.key, it.first) to it.second }
-                        }
-                        .asSequence()
-                        .toMap()
-
-        logger.info(
-                "Loading {} entities took {} ms.", loadedData.second.values.map { it.size }.sum(),
-                sw.elapsed(TimeUnit.MILLISECONDS)
+        val rankedSearchResults = blockBudget.truncate(
+                entityDataKey,
+                removeNegativeFeedbackFromSearchResult(
+                        entityDataKey,
+                        blockDepth.truncate(entityDataKey, blockedEntitySetSearchResults, top)
+                ).filter { it.value.isNotEmpty() }
         )
 
-        return loadedData
+        return candidateEntity to rankedSearchResults
+    }
+
+    /**
+     * Loads the entities of an entity set in batches of ranked entity key ids, until the block no longer fits in its
+     * byte budget. Each batch is read in full, so entities are only ever left out in rank order.
+     */
+    private fun loadRanked(
+            entitySetId: UUID,
+            entityKeyIds: Set<UUID>,
+            load: BlockBudget.BlockLoad
+    ): Sequence<List<Pair<EntityDataKey, Map<UUID, Set<Any>>>>> {
+        return entityKeyIds.asSequence()
+                .chunked(blockLoadingBatchSize)
+                .takeWhile { !load.isExceeded() }
+                .map { batch ->
+                    dataLoader.getEntityStream(entitySetId, batch.toSet()).use { entities ->
+                        entities.iterator().asSequence()
+                                .onEach { load.add(entitySetId, it.second) }
+                                .map { EntityDataKey(entitySetId, it.first) to it.second }
+                                .toList()
+                    }
+                }
+    }
+
+    private fun rankKeys(rankedSearchResults: Map<UUID, Set<UUID>>): List<EntityDataKey> {
+        return rankedSearchResults.flatMap { (entitySetId, entityKeyIds) ->
+            entityKeyIds.map { EntityDataKey(entitySetId, it) }
+        }
+    }
 
+    override fun recordMatches(
+            block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>,
+            matches: Set<EntityDataKey>
+    ) {
+        blockDepth.record(block.first, block.second.keys, matches)
+    }
+
+    /**
+     * Drops cached search results containing entities of [entitySetIds]. Results that should now include newly
+     * indexed entities but do not are left to the stale check in [search] and the cache TTL.
+     */
+    override fun invalidate(entitySetIds: Set<UUID>) {
+        searchCache.asMap().values.removeIf { result -> result.keys.any(entitySetIds::contains) }
+    }
+
+    private fun executeSearch(search: BlockingSearch): Map<UUID, Set<UUID>> {
+        return searchCache.get(search) {
+            elasticsearch.executeBlockingSearch(personEntityType.id, search.fieldSearches, search.top, false)
+                    .mapValues { it.value.toSet() }
+        }
+    }
+
+    private fun containsEntity(searchResults: Map<UUID, Set<UUID>>, entityDataKey: EntityDataKey): Boolean {
+        return searchResults[entityDataKey.entitySetId]?.contains(entityDataKey.entityKeyId) ?: false
     }
 
     /**
@@ -142,13 +316,32 @@ class ElasticsearchBlocker(
     private fun removeNegativeFeedbackFromSearchResult(
             entity: EntityDataKey, searchResult: Map<UUID, Set<UUID>>
     ): Map<UUID, Set<UUID>> {
-        val negFeedbacks = linkingFeedbackService.getLinkingFeedbackEntityKeyPairs(FeedbackType.Negative, entity)
+        if (!feedbackIndex.hasFeedback(FeedbackType.Negative, entity)) {
+            return searchResult
+        }
         return searchResult.mapValues {
             it.value.filter {
                 // remove pairs which have feedbacks for not matching this entity
                 entityKeyId ->
-                !negFeedbacks.contains(EntityKeyPair(entity, EntityDataKey(it.key, entityKeyId)))
+                !feedbackIndex.isNegative(entity, it.key, entityKeyId)
             }.toSet()
         }
     }
 }
+
+/**
+ * A blocking search, which is identified by its field searches and number of results.
+ */
+private class BlockingSearch(val fieldSearches: Map<UUID, DelegatedStringSet>, val top: Int) {
+    private val hash = 31 * fieldSearches.hashCode() + top
+
+    override fun hashCode(): Int {
+        return hash
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is BlockingSearch) return false
+        return hash == other.hash && top == other.top && fieldSearches == other.fieldSearches
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.clustering
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.LinkingConfiguration
+import java.util.*
+
+/**
+ * Keeps a bounded set of representatives for each large cluster, so that candidates can be scored against the
+ * representatives of a cluster instead of all of its members.
+ *
+ * Representatives are the medoids of a cluster: the members with the best mean score against the other members, as
+ * computed from the stored match scores of the cluster. Members that joined through representatives or a truncated
+ * cluster only have stored scores against the members they were scored against, so their mean is taken over those.
+ * Summaries are cached per linking id and maintained as candidates join the cluster on this node. A summary is rebuilt
+ * when the cluster changed in ways this node did not observe, such as members joining on other nodes or
+ * representatives leaving the cluster.
+ *
+ * Clusters with at most the configured number of members are always scored exactly.
+ */
+class ClusterSummaries(configuration: LinkingConfiguration, metricRegistry: MetricRegistry) {
+    private val exactClusterSize = configuration.exactClusterSize
+    private val representatives = configuration.clusterRepresentatives
+
+    private val summaries: Cache<UUID, ClusterSummary> = CacheBuilder.newBuilder()
+            .maximumSize(configuration.clusterSummaryCacheSize)
+            .recordStats()
+            .build()
+
+    private val summarized = metricRegistry.counter(MetricRegistry.name(ClusterSummaries::class.java, "summarized"))
+    private val rebuilt = metricRegistry.counter(MetricRegistry.name(ClusterSummaries::class.java, "rebuilt"))
+
+    init {
+        metricRegistry.register(
+                MetricRegistry.name(ClusterSummaries::class.java, "size"),
+                Gauge<Long> { summaries.size() }
+        )
+    }
+
+    /**
+     * @param linkingId The linking id of the cluster.
+     * @param cluster The stored match scores of the cluster.
+     * @return The cluster itself if it is small enough to score exactly, otherwise the scores among its representatives.
+     */
+    fun summarize(
+            linkingId: UUID,
+            cluster: Map<EntityDataKey, Map<EntityDataKey, Double>>
+    ): Map<EntityDataKey, Map<EntityDataKey, Double>> {
+        val members = collectKeys(cluster)
+        if (members.size <= exactClusterSize) {
+            return cluster
+        }
+
+        summarized.inc()
+        val kept = getSummary(linkingId, cluster, members).getRepresentatives()
+        return cluster.filterKeys(kept::contains).mapValues { it.value.filterKeys(kept::contains) }
+    }
+
+    /**
+     * Updates the summary of a cluster after a candidate joined it.
+     *
+     * @param scores The match scores computed when the candidate joined the cluster.
+     */
+    fun recordMember(linkingId: UUID, candidate: EntityDataKey, scores: Map<EntityDataKey, Map<EntityDataKey, Double>>) {
+        summaries.getIfPresent(linkingId)?.add(candidate, scores[candidate] ?: mapOf())
+    }
+
+    private fun getSummary(
+            linkingId: UUID,
+            cluster: Map<EntityDataKey, Map<EntityDataKey, Double>>,
+            members: Set<EntityDataKey>
+    ): ClusterSummary {
+        val summary = summaries.getIfPresent(linkingId)
+        if (summary != null && summary.isCurrent(members)) {
+            return summary
+        }
+
+        rebuilt.inc()
+        val rebuiltSummary = ClusterSummary.medoids(cluster, members, representatives)
+        summaries.put(linkingId, rebuiltSummary)
+        return rebuiltSummary
+    }
+}
+
+/**
+ * The representatives of a cluster with their mean score against the rest of the cluster, and the number of members
+ * the cluster had when it was last observed.
+ */
+internal class ClusterSummary(
+        private var members: Int,
+        private val representatives: MutableMap<EntityDataKey, Double>,
+        private val maximumRepresentatives: Int
+) {
+    companion object {
+        fun medoids(
+                cluster: Map<EntityDataKey, Map<EntityDataKey, Double>>,
+                members: Set<EntityDataKey>,
+                maximumRepresentatives: Int
+        ): ClusterSummary {
+            val sums = mutableMapOf<EntityDataKey, Double>()
+            val counts = mutableMapOf<EntityDataKey, Int>()
+            cluster.forEach { (lhs, row) ->
+                row.forEach { (rhs, score) ->
+                    if (lhs != rhs) {
+                        sums.merge(lhs, score, Double::plus)
+                        counts.merge(lhs, 1, Int::plus)
+                        sums.merge(rhs, score, Double::plus)
+                        counts.merge(rhs, 1, Int::plus)
+                    }
+                }
+            }
+
+            val medoids = sums.entries
+                    .map { it.key to it.value / counts.getValue(it.key) }
+                    .sortedByDescending { it.second }
+                    .take(maximumRepresentatives)
+                    .toMap(mutableMapOf())
+            return ClusterSummary(members.size, medoids, maximumRepresentatives)
+        }
+    }
+
+    @Synchronized
+    fun getRepresentatives(): Set<EntityDataKey> {
+        return representatives.keys.toSet()
+    }
+
+    /**
+     * @return True if the summary still describes a cluster with these members.
+     */
+    @Synchronized
+    fun isCurrent(clusterMembers: Set<EntityDataKey>): Boolean {
+        return members == clusterMembers.size && clusterMembers.containsAll(representatives.keys)
+    }
+
+    /**
+     * Adds a member, which replaces the weakest representative if it scored better against the representatives.
+     */
+    @Synchronized
+    fun add(member: EntityDataKey, scores: Map<EntityDataKey, Double>) {
+        members++
+        val meanScore = representatives.keys.mapNotNull { scores[it] }.average()
+        if (meanScore.isNaN()) {
+            return
+        }
+        if (representatives.size < maximumRepresentatives) {
+            representatives[member] = meanScore
+            return
+        }
+        val weakest = representatives.minBy { it.value }!!
+        if (meanScore > weakest.value) {
+            representatives.remove(weakest.key)
+            representatives[member] = meanScore
+        }
+    }
+}
+
+private fun collectKeys(m: Map<EntityDataKey, Map<EntityDataKey, Double>>): Set<EntityDataKey> {
+    return m.keys + m.values.flatMap { it.keys }
+}
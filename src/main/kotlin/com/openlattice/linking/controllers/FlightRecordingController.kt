@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.controllers
+
+import com.openlattice.authorization.AuthorizationManager
+import com.openlattice.authorization.AuthorizingComponent
+import com.openlattice.linking.monitoring.LINKING_EVENTS
+import jdk.jfr.Configuration
+import jdk.jfr.Recording
+import org.slf4j.LoggerFactory
+import org.springframework.http.MediaType
+import org.springframework.web.bind.annotation.GetMapping
+import org.springframework.web.bind.annotation.PostMapping
+import org.springframework.web.bind.annotation.RequestMapping
+import org.springframework.web.bind.annotation.RequestParam
+import org.springframework.web.bind.annotation.RestController
+import java.nio.file.Files
+import java.time.Duration
+import java.time.Instant
+import javax.inject.Inject
+import javax.servlet.http.HttpServletResponse
+
+/**
+ * Starts, dumps and stops a flight recording of this linker node, including the linking events in
+ * [com.openlattice.linking.monitoring], so that latency outliers can be investigated without attaching to the node.
+ */
+@RestController
+@RequestMapping(FlightRecordingController.CONTROLLER)
+class FlightRecordingController
+@Inject
+constructor(
+        private val authorizationManager: AuthorizationManager
+) : AuthorizingComponent {
+    companion object {
+        private val logger = LoggerFactory.getLogger(FlightRecordingController::class.java)
+
+        const val CONTROLLER = "/flight-recording"
+        const val START = "/start"
+        const val DUMP = "/dump"
+        const val STOP = "/stop"
+
+        const val MAX_AGE_SECONDS = "maxAgeSeconds"
+        const val SETTINGS = "settings"
+    }
+
+    private var recording: Recording? = null
+
+    /**
+     * Starts a flight recording, unless one is running already.
+     *
+     * @param maxAgeSeconds How long recorded events are kept before they are discarded.
+     * @param settings The name of the JDK recording settings to use, either "default" or "profile".
+     * @return The id of the running recording.
+     */
+    @PostMapping(path = [START], produces = [MediaType.APPLICATION_JSON_VALUE])
+    @Synchronized
+    fun start(
+            @RequestParam(name = MAX_AGE_SECONDS, defaultValue = "900") maxAgeSeconds: Long,
+            @RequestParam(name = SETTINGS, defaultValue = "profile") settings: String
+    ): Long {
+        ensureAdminAccess()
+        recording?.let { return it.id }
+
+        val configuration = try {
+            Configuration.getConfiguration(settings)
+        } catch (ex: Exception) {
+            throw IllegalArgumentException("Unknown recording settings $settings.", ex)
+        }
+        val started = Recording(configuration)
+        LINKING_EVENTS.forEach { started.enable(it) }
+        started.name = "linker"
+        started.maxAge = Duration.ofSeconds(maxAgeSeconds)
+        started.isToDisk = true
+        started.start()
+        recording = started
+
+        logger.info("Started flight recording {} with {} settings.", started.id, settings)
+        return started.id
+    }
+
+    /**
+     * Streams the events recorded so far as a JFR file. The recording keeps running.
+     */
+    @GetMapping(path = [DUMP], produces = [MediaType.APPLICATION_OCTET_STREAM_VALUE])
+    fun dump(response: HttpServletResponse) {
+        ensureAdminAccess()
+        val file = Files.createTempFile("linker-", ".jfr")
+        try {
+            synchronized(this) {
+                val running = recording ?: throw IllegalStateException("No flight recording is running.")
+                running.dump(file)
+            }
+            response.contentType = MediaType.APPLICATION_OCTET_STREAM_VALUE
+            response.setHeader(
+                    "Content-Disposition",
+                    "attachment; filename=\"linker-${Instant.now().toEpochMilli()}.jfr\""
+            )
+            Files.copy(file, response.outputStream)
+        } finally {
+            Files.deleteIfExists(file)
+        }
+    }
+
+    /**
+     * Stops the running flight recording and discards its events.
+     */
+    @PostMapping(path = [STOP])
+    @Synchronized
+    fun stop() {
+        ensureAdminAccess()
+        recording?.let {
+            it.close()
+            logger.info("Stopped flight recording {}.", it.id)
+        }
+        recording = null
+    }
+
+    override fun getAuthorizationManager(): AuthorizationManager {
+        return authorizationManager
+    }
+}
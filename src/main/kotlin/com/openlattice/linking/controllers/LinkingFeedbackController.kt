@@ -22,6 +22,7 @@
 package com.openlattice.linking.controllers
 
 import com.google.common.collect.Sets
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.openlattice.authorization.AclKey
 import com.openlattice.authorization.AuthorizationManager
 import com.openlattice.authorization.AuthorizingComponent
@@ -36,8 +37,18 @@ import com.openlattice.linking.util.PersonProperties
 import org.slf4j.LoggerFactory
 import org.springframework.http.MediaType
 import org.springframework.web.bind.annotation.*
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
 import javax.inject.Inject
 
+private const val FEATURES_PAGE_SIZE = 1_000
+
+/**
+ * The number of threads computing features for feedback exports, shared by all requests.
+ */
+private val FEATURES_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors() / 2)
+
 @RestController
 @RequestMapping(LinkingFeedbackApi.CONTROLLER)
 class LinkingFeedbackController
@@ -45,19 +56,30 @@ class LinkingFeedbackController
 constructor(
         private val authorizationManager: AuthorizationManager,
         private val feedbackService: PostgresLinkingFeedbackService,
+        private val feedbackWriter: PostgresLinkingFeedbackWriter,
+        private val feedbackReader: PostgresLinkingFeedbackReader,
         private val matcher: Matcher,
         private val dataLoader: DataLoader,
         private val edm: EdmManager,
         private val linkingQueryService: PostgresLinkingQueryService,
         private val dataManager: IndexingMetadataManager,
-        private val entitySetManager: EntitySetManager
+        private val entitySetManager: EntitySetManager,
+        private val linkingService: BackgroundLinkingService,
+        private val feedbackIndex: LinkingFeedbackIndex
 ) : LinkingFeedbackApi, AuthorizingComponent {
 
 
     private val personPropertyIds = PersonProperties.FQNS.map { edm.getPropertyTypeId(it) }
+    private val featureExtractors = Executors.newFixedThreadPool(
+            FEATURES_PARALLELISM,
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("feedback-features-%d").build()
+    )
 
     companion object {
         private val logger = LoggerFactory.getLogger(LinkingFeedbackController::class.java)
+
+        const val OFFSET = "offset"
+        const val COUNT = "count"
     }
 
     @PutMapping(path = [], produces = [MediaType.APPLICATION_JSON_VALUE])
@@ -84,21 +106,21 @@ constructor(
         val linkingEntities = feedback.link.toTypedArray()
         val nonLinkingEntities = feedback.unlink.toTypedArray()
 
-        var positiveFeedbackCount = 0
-        var negativeFeedbackCount = 0
-
-        linkingEntities.forEachIndexed { index, linkingEntity ->
+        val linkingFeedback = linkingEntities.withIndex().flatMap { (index, linkingEntity) ->
             // generate pairs between linking entities themselves
-            positiveFeedbackCount += createLinkingFeedbackCombinations(
-                    linkingEntity, linkingEntities, index + 1, true)
-
-            // generate pairs between linking and non-linking entities
-            negativeFeedbackCount += createLinkingFeedbackCombinations(
-                    linkingEntity, nonLinkingEntities, 0, false)
+            createLinkingFeedbackCombinations(linkingEntity, linkingEntities, index + 1, true) +
+                    // generate pairs between linking and non-linking entities
+                    createLinkingFeedbackCombinations(linkingEntity, nonLinkingEntities, 0, false)
         }
+        val positiveFeedbackCount = linkingFeedback.count { it.linked }
+        val negativeFeedbackCount = linkingFeedback.size - positiveFeedbackCount
+
+        feedbackWriter.addLinkingFeedback(linkingFeedback)
+        feedbackIndex.add(linkingFeedback)
 
         // mark entities as need to be linked
         dataManager.markAsNeedsToBeLinked(feedback.link + feedback.unlink)
+        linkingService.requestLinking(feedback.link + feedback.unlink)
 
 
         logger.info("Submitted $positiveFeedbackCount positive and $negativeFeedbackCount negative feedback for " +
@@ -128,15 +150,14 @@ constructor(
     }
 
     private fun createLinkingFeedbackCombinations(
-            entityDataKey: EntityDataKey, entityList: Array<EntityDataKey>, offset: Int, linked: Boolean): Int {
-        (offset until entityList.size).forEach {
-            val elf = EntityLinkingFeedback(EntityKeyPair(entityDataKey, entityList[it]), linked)
-
-            feedbackService.addLinkingFeedback(elf)
-
-            logger.info("Linking feedback submitted for entities: $entityDataKey - ${entityList[it]}, linked = $linked")
+            entityDataKey: EntityDataKey,
+            entityList: Array<EntityDataKey>,
+            offset: Int,
+            linked: Boolean
+    ): List<EntityLinkingFeedback> {
+        return (offset until entityList.size).map {
+            EntityLinkingFeedback(EntityKeyPair(entityDataKey, entityList[it]), linked)
         }
-        return entityList.size
     }
 
     @PostMapping(path = [LinkingFeedbackApi.ENTITY], produces = [MediaType.APPLICATION_JSON_VALUE])
@@ -153,14 +174,7 @@ constructor(
         { "Linking feedback for entities ${entityPair.first} - ${entityPair.second} does not exist" }
 
         val entities = dataLoader.getEntities(setOf(feedback.entityPair.first, feedback.entityPair.second))
-        return EntityLinkingFeatures(
-                feedback,
-                PersonMetric.values().map { it.toString() }
-                        .zip(matcher.extractFeatures(
-                                matcher.extractProperties(entities.getValue(feedback.entityPair.first)),
-                                matcher.extractProperties(entities.getValue(feedback.entityPair.second))).asList())
-                        .toMap()
-        )
+        return getFeatures(feedback, entities)
     }
 
     @GetMapping(path = [LinkingFeedbackApi.ALL], produces = [MediaType.APPLICATION_JSON_VALUE])
@@ -168,29 +182,76 @@ constructor(
         return feedbackService.getLinkingFeedback()
     }
 
+    override fun getAllLinkingFeedbackWithFeatures(): Iterable<EntityLinkingFeatures> {
+        return getAllLinkingFeedbackWithFeatures(0, Int.MAX_VALUE)
+    }
+
+    /**
+     * Lazily computes the features of linking feedback, so that each record is serialized as soon as it is ready.
+     *
+     * Feedback is read from postgres and processed in pages of [FEATURES_PAGE_SIZE]. The entities of each page are
+     * loaded with a single bulk call and its features are computed in parallel on a dedicated pool of
+     * [FEATURES_PARALLELISM] threads, so that large exports neither occupy the common fork join pool nor compete with
+     * linking for more than their share of cores.
+     *
+     * @param offset The number of feedback records to skip.
+     * @param count The maximum number of feedback records to return.
+     */
     @GetMapping(
             path = [LinkingFeedbackApi.FEATURES + LinkingFeedbackApi.ALL],
             produces = [MediaType.APPLICATION_JSON_VALUE])
-    override fun getAllLinkingFeedbackWithFeatures(): Iterable<EntityLinkingFeatures> {
-        return feedbackService.getLinkingFeedback().map {
-            val entities = dataLoader.getEntities(setOf(it.entityPair.first, it.entityPair.second))
-            EntityLinkingFeatures(
-                    it,
-                    PersonMetric.values().map { it.toString() }
-                            .zip(matcher.extractFeatures(
-                                    matcher.extractProperties(entities.getValue(it.entityPair.first)),
-                                    matcher.extractProperties(entities.getValue(it.entityPair.second))).asList())
-                            .toMap()
-            )
-        }
+    fun getAllLinkingFeedbackWithFeatures(
+            @RequestParam(value = OFFSET, required = false, defaultValue = "0") offset: Int,
+            @RequestParam(value = COUNT, required = false, defaultValue = "2147483647") count: Int
+    ): Iterable<EntityLinkingFeatures> {
+        require(offset >= 0 && count >= 0) { "Offset and count must not be negative." }
+
+        return feedbackReader.getLinkingFeedback(offset, count, FEATURES_PAGE_SIZE)
+                .chunked(FEATURES_PAGE_SIZE)
+                .flatMap { page -> getFeatures(page).asSequence() }
+                .asIterable()
+    }
+
+    private fun getFeatures(page: List<EntityLinkingFeedback>): List<EntityLinkingFeatures> {
+        val entities = dataLoader.getEntities(page.flatMap { listOf(it.entityPair.first, it.entityPair.second) }.toSet())
+        val available = page
+                .filter { feedback ->
+                    val loaded = entities.containsKey(feedback.entityPair.first)
+                            && entities.containsKey(feedback.entityPair.second)
+                    if (!loaded) {
+                        logger.warn("Skipping features of linking feedback {} as its entities no longer exist.", feedback)
+                    }
+                    loaded
+                }
+
+        val slices = available.chunked(Math.max(1, (available.size + FEATURES_PARALLELISM - 1) / FEATURES_PARALLELISM))
+        return featureExtractors
+                .invokeAll(slices.map { slice -> Callable { slice.map { getFeatures(it, entities) } } })
+                .flatMap { it.get() }
+    }
+
+    private fun getFeatures(
+            feedback: EntityLinkingFeedback,
+            entities: Map<EntityDataKey, Map<UUID, Set<Any>>>
+    ): EntityLinkingFeatures {
+        return EntityLinkingFeatures(
+                feedback,
+                PersonMetric.values().map { it.toString() }
+                        .zip(matcher.extractFeatures(
+                                matcher.extractProperties(entities.getValue(feedback.entityPair.first)),
+                                matcher.extractProperties(entities.getValue(feedback.entityPair.second))).asList())
+                        .toMap()
+        )
     }
 
     @DeleteMapping(path = [], produces = [MediaType.APPLICATION_JSON_VALUE])
     override fun deleteLinkingFeedback(@RequestBody entityPair: EntityKeyPair): Int {
         ensureAdminAccess() // currently it's only used by tests
         val count = feedbackService.deleteLinkingFeedback(entityPair)
+        feedbackIndex.remove(entityPair)
         // mark entities as need to be linked
         dataManager.markAsNeedsToBeLinked(setOf(entityPair.first, entityPair.second))
+        linkingService.requestLinking(setOf(entityPair.first, entityPair.second))
         return count
     }
 
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.controllers
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.openlattice.authorization.AclKey
+import com.openlattice.authorization.AuthorizationManager
+import com.openlattice.authorization.AuthorizingComponent
+import com.openlattice.authorization.Permission
+import com.openlattice.authorization.Principal
+import com.openlattice.authorization.Principals
+import com.openlattice.data.EntityDataKey
+import com.openlattice.datastore.services.EdmManager
+import com.openlattice.linking.DataLoader
+import com.openlattice.linking.Matcher
+import com.openlattice.linking.ScoredPair
+import com.openlattice.linking.ScoringPair
+import com.openlattice.linking.util.PersonProperties
+import org.slf4j.LoggerFactory
+import org.springframework.http.MediaType
+import org.springframework.web.bind.annotation.PostMapping
+import org.springframework.web.bind.annotation.RequestMapping
+import org.springframework.web.bind.annotation.RestController
+import java.util.*
+import javax.inject.Inject
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+const val NDJSON_VALUE = "application/x-ndjson"
+private const val SCORING_BATCH_SIZE = 1_000
+
+/**
+ * Scores pairs of entities with the matching model.
+ */
+@RestController
+@RequestMapping(LinkingScoringController.CONTROLLER)
+class LinkingScoringController
+@Inject
+constructor(
+        private val authorizationManager: AuthorizationManager,
+        private val matcher: Matcher,
+        private val dataLoader: DataLoader,
+        private val edm: EdmManager,
+        private val mapper: ObjectMapper
+) : AuthorizingComponent {
+
+    private val personPropertyIds = PersonProperties.FQNS.map { edm.getPropertyTypeId(it) }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(LinkingScoringController::class.java)
+
+        const val CONTROLLER = "/scoring"
+        const val PAIRS = "/pairs"
+    }
+
+    /**
+     * Scores a stream of [ScoringPair]s, sent as newline delimited or array wrapped JSON, and streams back a
+     * [ScoredPair] per line as soon as each batch of pairs has been scored. Pairs are read, loaded and scored in
+     * batches of [SCORING_BATCH_SIZE], so memory use does not depend on the number of pairs.
+     *
+     * Since the response is already streaming when later batches are read, pairs that reference entity sets the caller
+     * cannot read are answered with an error record instead of failing the request.
+     */
+    @PostMapping(
+            path = [PAIRS],
+            consumes = [NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE],
+            produces = [NDJSON_VALUE]
+    )
+    fun scorePairs(request: HttpServletRequest, response: HttpServletResponse) {
+        response.contentType = NDJSON_VALUE
+        val principals = Principals.getCurrentPrincipals()
+        val readable = mutableMapOf<UUID, Boolean>()
+        var count = 0
+
+        mapper.readerFor(ScoringPair::class.java).readValues<ScoringPair>(request.inputStream).use { pairs ->
+            mapper.writer().withRootValueSeparator("\n").writeValues(response.outputStream).use { out ->
+                pairs.asSequence().withIndex().chunked(SCORING_BATCH_SIZE).forEach { batch ->
+                    val dataKeys = batch.flatMap { listOfNotNull(it.value.first, it.value.second) }
+                            .filter { dataKey ->
+                                readable.getOrPut(dataKey.entitySetId) { canRead(dataKey.entitySetId, principals) }
+                            }
+                            .toSet()
+
+                    val entities = dataLoader.getEntities(dataKeys)
+                    val resolved = batch.map { (_, pair) -> resolve(pair, entities, readable) }
+
+                    val scores = matcher.score(resolved.mapNotNull { it.first }).iterator()
+                    batch.zip(resolved).forEach { (indexedPair, resolution) ->
+                        val (entityPair, error) = resolution
+                        out.write(
+                                ScoredPair(
+                                        indexedPair.index,
+                                        indexedPair.value.first,
+                                        indexedPair.value.second,
+                                        entityPair?.let { scores.next() },
+                                        error
+                                )
+                        )
+                    }
+                    out.flush()
+                    count += batch.size
+                }
+            }
+        }
+
+        logger.info("Scored {} entity pairs.", count)
+    }
+
+    /**
+     * @return The entities of a pair or why it cannot be scored.
+     */
+    private fun resolve(
+            pair: ScoringPair,
+            entities: Map<EntityDataKey, Map<UUID, Set<Any>>>,
+            readable: Map<UUID, Boolean>
+    ): Pair<Pair<Map<UUID, Set<Any>>, Map<UUID, Set<Any>>>?, String?> {
+        val forbidden = listOfNotNull(pair.first, pair.second).firstOrNull { readable[it.entitySetId] != true }
+        if (forbidden != null) {
+            return null to "Missing read access to entity set ${forbidden.entitySetId}."
+        }
+
+        val lhs = pair.lhs ?: pair.first?.let { entities[it] }
+        val rhs = pair.rhs ?: pair.second?.let { entities[it] }
+        return if (lhs == null || rhs == null) null to "Entity not found." else (lhs to rhs) to null
+    }
+
+    /**
+     * @return True if the principals can read the entity set and the person properties used for matching.
+     */
+    private fun canRead(entitySetId: UUID, principals: Set<Principal>): Boolean {
+        val aclKeys = listOf(AclKey(entitySetId)) + personPropertyIds.map { AclKey(entitySetId, it) }
+        return aclKeys.all { authorizationManager.checkIfHasPermissions(it, principals, EnumSet.of(Permission.READ)) }
+    }
+
+    override fun getAuthorizationManager(): AuthorizationManager {
+        return authorizationManager
+    }
+}
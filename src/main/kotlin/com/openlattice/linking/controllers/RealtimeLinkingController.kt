@@ -1,16 +1,19 @@
 package com.openlattice.linking.controllers
 
+import com.openlattice.authorization.AclKey
 import com.openlattice.authorization.AuthorizationManager
 import com.openlattice.authorization.AuthorizingComponent
+import com.openlattice.authorization.Permission
+import com.openlattice.authorization.Principals
+import com.openlattice.data.EntityDataKey
 import com.openlattice.datastore.services.EdmManager
-import com.openlattice.linking.EntityKeyPair
-import com.openlattice.linking.LinkingConfiguration
-import com.openlattice.linking.LinkingQueryService
-import com.openlattice.linking.MatchedEntityPair
-import com.openlattice.linking.RealtimeLinkingApi
+import com.openlattice.linking.*
+import com.openlattice.linking.util.PersonProperties
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
+import org.slf4j.LoggerFactory
 import org.springframework.http.MediaType
 import org.springframework.web.bind.annotation.PathVariable
+import org.springframework.web.bind.annotation.RequestBody
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RequestMethod
 import org.springframework.web.bind.annotation.RestController
@@ -21,18 +24,31 @@ import kotlin.collections.HashSet
 @RestController
 @RequestMapping(RealtimeLinkingApi.CONTROLLER)
 class RealtimeLinkingController(
-        lc: LinkingConfiguration,
         edm: EdmManager
 ) : RealtimeLinkingApi, AuthorizingComponent {
+    companion object {
+        private val logger = LoggerFactory.getLogger(RealtimeLinkingController::class.java)
+
+        const val LINK = "/link"
+        const val PROGRESS = "/progress"
+    }
+
     @Inject
     private lateinit var lqs: LinkingQueryService
 
     @Inject
     private lateinit var authz: AuthorizationManager
 
-    private val entitySetBlacklist = lc.blacklist
-    private val priorityEntitySets = lc.whitelist.orElseGet { setOf() }
-    private val linkableTypes = edm.getEntityTypeUuids(lc.entityTypes)
+    @Inject
+    private lateinit var linkingService: BackgroundLinkingService
+
+    @Inject
+    private lateinit var linker: EntityLinker
+
+    @Inject
+    private lateinit var progressTracker: LinkingProgressTracker
+
+    private val personPropertyIds = PersonProperties.FQNS.map { edm.getPropertyTypeId(it) }
 
     override fun getAuthorizationManager(): AuthorizationManager {
         return authz
@@ -49,11 +65,26 @@ class RealtimeLinkingController(
     )
     override fun getLinkingFinishedEntitySets(): Set<UUID> {
         ensureAdminAccess()
-        val linkableEntitySets = lqs
-                .getLinkableEntitySets(linkableTypes, entitySetBlacklist, priorityEntitySets)
-                .toSet()
-        val entitySetsNeedLinking = lqs.getEntitiesNotLinked(linkableEntitySets).map { it.first }
-        return linkableEntitySets.minus(entitySetsNeedLinking)
+        return progressTracker.getFinishedEntitySets()
+    }
+
+    /**
+     * Reports the number of entities pending linking for each linkable entity set, along with the number of entities
+     * queued and linked and the linking throughput of this node. Pending entities are counted in the background, so
+     * the report does not scan for them.
+     */
+    @SuppressFBWarnings(
+            value = ["RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE"],
+            justification = "lateinit prevents NPE here"
+    )
+    @RequestMapping(
+            path = [PROGRESS],
+            method = [RequestMethod.GET],
+            produces = [MediaType.APPLICATION_JSON_VALUE]
+    )
+    fun getLinkingProgress(): LinkingProgress {
+        ensureAdminAccess()
+        return progressTracker.getLinkingProgress()
     }
 
     @RequestMapping(
@@ -77,4 +108,69 @@ class RealtimeLinkingController(
 
         return matchedEntityPairs
     }
+
+    /**
+     * Links a single record on the caller's thread.
+     *
+     * Records that are not persisted are scored against existing clusters within the latency budget of the request.
+     * Persisted records are fully linked, reporting whether the budget was exceeded, and require write access to the
+     * entity set. If a persisted record is already being linked in the background or linking is still warming up, the
+     * linking id it would be assigned is returned without persisting it.
+     *
+     * The linking id and score of a cluster are only returned if the caller can read the person properties of all of
+     * its members, since they reveal which records in other entity sets the record matched.
+     */
+    @SuppressFBWarnings(
+            value = ["RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE"],
+            justification = "lateinit prevents NPE here"
+    )
+    @RequestMapping(
+            path = [LINK],
+            method = [RequestMethod.POST],
+            consumes = [MediaType.APPLICATION_JSON_VALUE],
+            produces = [MediaType.APPLICATION_JSON_VALUE]
+    )
+    fun link(@RequestBody request: RealtimeLinkRequest): RealtimeLinkResult {
+        ensureReadAccess(AclKey(request.entitySetId))
+        personPropertyIds.forEach { ensureReadAccess(AclKey(request.entitySetId, it)) }
+        if (request.persist) {
+            ensureWriteAccess(AclKey(request.entitySetId))
+        }
+
+        val budget = LatencyBudget(request.budgetMillis)
+        val candidate = EntityDataKey(request.entitySetId, request.entityKeyId.orElseGet { UUID.randomUUID() })
+
+        if (request.persist) {
+            val linkingId = linkingService.linkNow(candidate)
+            if (linkingId != null) {
+                val members = lqs.getClusterFromLinkingId(linkingId).keys
+                return RealtimeLinkResult(
+                        if (canReadMembers(members)) linkingId else null,
+                        null,
+                        true,
+                        budget.isExceeded(),
+                        budget.elapsedMillis()
+                )
+            }
+            logger.info("Unable to link {} synchronously as it is already being linked or warming up.", candidate)
+        }
+
+        return try {
+            val cluster = linker.findCluster(candidate, request.entity, budget)
+                    ?.takeIf { canReadMembers(it.cluster.keys) }
+            RealtimeLinkResult(cluster?.clusterId, cluster?.score, false, false, budget.elapsedMillis())
+        } catch (ex: LatencyBudgetExceededException) {
+            logger.info("Unable to link {} within {} ms: {}", candidate, request.budgetMillis, ex.message)
+            RealtimeLinkResult(null, null, false, true, budget.elapsedMillis())
+        }
+    }
+
+    private fun canReadMembers(members: Set<EntityDataKey>): Boolean {
+        val principals = Principals.getCurrentPrincipals()
+        return members.map { it.entitySetId }.toSet().all { entitySetId ->
+            (listOf(AclKey(entitySetId)) + personPropertyIds.map { AclKey(entitySetId, it) }).all {
+                authz.checkIfHasPermissions(it, principals, EnumSet.of(Permission.READ))
+            }
+        }
+    }
 }
\ No newline at end of file
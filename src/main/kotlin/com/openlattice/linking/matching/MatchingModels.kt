@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.matching
+
+import com.google.common.base.Stopwatch
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer
+import org.deeplearning4j.nn.modelimport.keras.KerasModelImport
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork
+import org.deeplearning4j.util.ModelSerializer
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+const val KERAS_MODEL = "model_2019-01-30.h5"
+
+/**
+ * The Keras model converted by the convertModel build task, which loads without parsing HDF5 at startup.
+ */
+const val MODEL_ARTIFACT = "model_2019-01-30.bin"
+
+/**
+ * Loads the matching model and creates the per thread copies used for inference.
+ */
+object MatchingModels {
+    private val logger = LoggerFactory.getLogger(MatchingModels::class.java)
+
+    /**
+     * Loads the converted model artifact from the classpath, falling back to importing the Keras model if the artifact
+     * was not built.
+     */
+    @JvmStatic
+    fun loadKerasModel(): MultiLayerNetwork {
+        val sw = Stopwatch.createStarted()
+        val artifact = Thread.currentThread().contextClassLoader.getResource(MODEL_ARTIFACT)
+        val model = if (artifact != null) {
+            artifact.openStream().buffered().use { ModelSerializer.restoreMultiLayerNetwork(it, false) }
+        } else {
+            logger.warn("Model artifact {} is missing, importing {} instead.", MODEL_ARTIFACT, KERAS_MODEL)
+            importKerasModel()
+        }
+
+        logger.info(
+                "Loaded matching model from {} in {} ms. Its {} parameters take {} bytes and are shared by all threads. " +
+                        "Each thread needs up to {} bytes of activations per scored pair.",
+                if (artifact != null) MODEL_ARTIFACT else KERAS_MODEL,
+                sw.elapsed(TimeUnit.MILLISECONDS),
+                model.numParams(),
+                getParameterBytes(model),
+                getActivationBytesPerRow(model)
+        )
+        return model
+    }
+
+    /**
+     * Creates a copy of a model for a single thread. The copy has its own layers and activations but shares the
+     * parameters of the model, which are only read during inference.
+     */
+    @JvmStatic
+    fun shareParameters(model: MultiLayerNetwork): MultiLayerNetwork {
+        val copy = MultiLayerNetwork(model.layerWiseConfigurations.clone())
+        copy.init(model.params(), false)
+        return copy
+    }
+
+    @JvmStatic
+    fun getParameterBytes(model: MultiLayerNetwork): Long {
+        val params = model.params()
+        return params.length() * params.data().elementSize
+    }
+
+    /**
+     * The activations a thread holds for each row of a feature matrix it scores, which is an upper bound as inference
+     * only keeps the input and output of the current layer.
+     */
+    @JvmStatic
+    fun getActivationBytesPerRow(model: MultiLayerNetwork): Long {
+        val layers = model.layerWiseConfigurations.confs.map { it.layer }.filterIsInstance<FeedForwardLayer>()
+        val values = (layers.firstOrNull()?.nIn?.toLong() ?: 0L) + layers.map { it.nOut.toLong() }.sum()
+        return values * model.params().data().elementSize
+    }
+
+    private fun importKerasModel(): MultiLayerNetwork {
+        return Thread.currentThread().contextClassLoader.getResourceAsStream(KERAS_MODEL)!!.use {
+            KerasModelImport.importKerasSequentialModelAndWeights(it)
+        }
+    }
+
+    /**
+     * Converts the Keras model into the model artifact.
+     *
+     * @param args The path of the Keras model and the path to write the artifact to.
+     */
+    @JvmStatic
+    fun main(args: Array<String>) {
+        require(args.size == 2) { "Expected the path of the Keras model and the path of the artifact." }
+        val output = File(args[1])
+        output.parentFile.mkdirs()
+
+        val model = KerasModelImport.importKerasSequentialModelAndWeights(args[0])
+        ModelSerializer.writeModel(model, output, false)
+        logger.info("Converted {} into {}", args[0], output)
+    }
+}
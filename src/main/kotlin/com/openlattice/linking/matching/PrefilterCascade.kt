@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.matching
+
+import com.codahale.metrics.Counter
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.data.EntityDataKey
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.slf4j.LoggerFactory
+import java.time.LocalDate
+import java.time.format.DateTimeParseException
+import java.util.*
+
+const val SEX_PREFILTER = "sex"
+const val BIRTH_DATE_PREFILTER = "birth-date"
+const val NAME_PREFILTER = "names"
+
+private val SEX_FQN = FullQualifiedName("nc.PersonSex")
+private val BIRTH_DATE_FQN = FullQualifiedName("nc.PersonBirthDate")
+private val GIVEN_NAME_FQN = FullQualifiedName("nc.PersonGivenName")
+private val SURNAME_FQN = FullQualifiedName("nc.PersonSurName")
+
+private val NAME_DELIMITER = Regex("[^\\p{L}\\p{N}]+")
+
+/**
+ * A cheap test of whether an entity could possibly match a candidate.
+ */
+interface Prefilter {
+    val name: String
+
+    /**
+     * Prepares the filter for a candidate, so that the candidate is normalized only once per block.
+     *
+     * @return A predicate that is false for entities that can not match the candidate.
+     */
+    fun forCandidate(candidate: Map<UUID, Set<Any>>): (Map<UUID, Set<Any>>) -> Boolean
+}
+
+/**
+ * Runs a block through a sequence of prefilters before it is scored by the model. Each stage only sees the entities
+ * that passed the previous stages, so cheaper and more selective filters should come first. Entities missing the
+ * properties a filter relies on always pass it.
+ */
+class PrefilterCascade(private val stages: List<Prefilter>, metricRegistry: MetricRegistry) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(PrefilterCascade::class.java)
+
+        /**
+         * Builds the configured prefilters in order, skipping filters whose properties are not part of the model.
+         */
+        @JvmStatic
+        fun fromConfiguration(
+                names: List<String>,
+                birthDateBandDays: Long,
+                fqnToIdMap: Map<FullQualifiedName, UUID>,
+                metricRegistry: MetricRegistry
+        ): PrefilterCascade {
+            val stages = names.mapNotNull { name ->
+                val stage = when (name) {
+                    SEX_PREFILTER -> fqnToIdMap[SEX_FQN]?.let { SexPrefilter(it) }
+                    BIRTH_DATE_PREFILTER -> fqnToIdMap[BIRTH_DATE_FQN]?.let {
+                        BirthDatePrefilter(it, birthDateBandDays)
+                    }
+                    NAME_PREFILTER -> listOfNotNull(fqnToIdMap[GIVEN_NAME_FQN], fqnToIdMap[SURNAME_FQN])
+                            .let { if (it.isEmpty()) null else NamePrefilter(it.toSet()) }
+                    else -> throw IllegalArgumentException("Unknown prefilter $name")
+                }
+                if (stage == null) {
+                    logger.warn("Skipping prefilter {} as its properties are not used for matching.", name)
+                }
+                stage
+            }
+            logger.info("Prefiltering blocks with {}", stages.map { it.name })
+            return PrefilterCascade(stages, metricRegistry)
+        }
+    }
+
+    private val evaluated = stages.map { metricRegistry.counter(stageMetric(it, "evaluated")) }
+    private val rejected = stages.map { metricRegistry.counter(stageMetric(it, "rejected")) }
+    private val counting = ThreadLocal.withInitial { true }
+
+    /**
+     * Runs [work] without counting the blocks it filters on the calling thread, so that synthetic blocks do not skew
+     * the rejection rates of real ones.
+     */
+    fun <T> uncounted(work: () -> T): T {
+        counting.set(false)
+        try {
+            return work()
+        } finally {
+            counting.remove()
+        }
+    }
+
+    /**
+     * @return The entities of the block that passed all stages. The candidate itself is always kept.
+     */
+    fun filter(
+            candidate: EntityDataKey,
+            entities: Map<EntityDataKey, Map<UUID, Set<Any>>>
+    ): Map<EntityDataKey, Map<UUID, Set<Any>>> {
+        val candidateEntity = entities[candidate] ?: return entities
+        return filter(candidateEntity, entities.filterKeys { it != candidate }) + (candidate to candidateEntity)
+    }
+
+    /**
+     * @param candidateEntity The properties of the candidate, which is not expected among the entities.
+     * @return The entities that passed all stages.
+     */
+    fun filter(
+            candidateEntity: Map<UUID, Set<Any>>,
+            entities: Map<EntityDataKey, Map<UUID, Set<Any>>>
+    ): Map<EntityDataKey, Map<UUID, Set<Any>>> {
+        var survivors = entities
+
+        stages.forEachIndexed { index, stage ->
+            if (survivors.isEmpty()) {
+                return@forEachIndexed
+            }
+            val test = stage.forCandidate(candidateEntity)
+            val passed = survivors.filterValues(test)
+            if (counting.get()) {
+                count(evaluated[index], survivors.size)
+                count(rejected[index], survivors.size - passed.size)
+            }
+            survivors = passed
+        }
+
+        return survivors
+    }
+
+    private fun count(counter: Counter, n: Int) {
+        if (n > 0) {
+            counter.inc(n.toLong())
+        }
+    }
+
+    private fun stageMetric(stage: Prefilter, metric: String): String {
+        return MetricRegistry.name(PrefilterCascade::class.java, stage.name, metric)
+    }
+}
+
+/**
+ * Rejects entities whose recorded sex differs from the candidate's. Unknown values are ignored.
+ */
+class SexPrefilter(private val propertyTypeId: UUID) : Prefilter {
+    override val name = SEX_PREFILTER
+
+    override fun forCandidate(candidate: Map<UUID, Set<Any>>): (Map<UUID, Set<Any>>) -> Boolean {
+        val candidateSexes = normalize(candidate)
+        if (candidateSexes.isEmpty()) {
+            return { true }
+        }
+        return { entity ->
+            val sexes = normalize(entity)
+            sexes.isEmpty() || sexes.any { candidateSexes.contains(it) }
+        }
+    }
+
+    private fun normalize(entity: Map<UUID, Set<Any>>): Set<Char> {
+        return entity[propertyTypeId]
+                ?.mapNotNull { it.toString().trim().firstOrNull()?.toUpperCase() }
+                ?.filter { it == 'M' || it == 'F' }
+                ?.toSet()
+                ?: setOf()
+    }
+}
+
+/**
+ * Rejects entities whose birth dates are all further than [bandDays] from all of the candidate's birth dates.
+ */
+class BirthDatePrefilter(private val propertyTypeId: UUID, private val bandDays: Long) : Prefilter {
+    override val name = BIRTH_DATE_PREFILTER
+
+    override fun forCandidate(candidate: Map<UUID, Set<Any>>): (Map<UUID, Set<Any>>) -> Boolean {
+        val candidateDays = epochDays(candidate)
+        if (candidateDays.isEmpty()) {
+            return { true }
+        }
+        return { entity ->
+            val days = epochDays(entity)
+            days.isEmpty() || days.any { day -> candidateDays.any { Math.abs(it - day) <= bandDays } }
+        }
+    }
+
+    private fun epochDays(entity: Map<UUID, Set<Any>>): List<Long> {
+        return entity[propertyTypeId]?.mapNotNull { value ->
+            when (value) {
+                is LocalDate -> value.toEpochDay()
+                else -> try {
+                    LocalDate.parse(value.toString().take(10)).toEpochDay()
+                } catch (ex: DateTimeParseException) {
+                    null
+                }
+            }
+        } ?: listOf()
+    }
+}
+
+/**
+ * Rejects entities that share no name token with the candidate. Given names and surnames are pooled, so that swapped
+ * names still pass. Tokens must match exactly, so misspelled or transliterated names that the model would still match
+ * are rejected; the filter is only used when configured explicitly.
+ */
+class NamePrefilter(private val propertyTypeIds: Set<UUID>) : Prefilter {
+    override val name = NAME_PREFILTER
+
+    override fun forCandidate(candidate: Map<UUID, Set<Any>>): (Map<UUID, Set<Any>>) -> Boolean {
+        val candidateTokens = tokenize(candidate)
+        if (candidateTokens.isEmpty()) {
+            return { true }
+        }
+        return { entity ->
+            val tokens = tokenize(entity)
+            tokens.isEmpty() || tokens.any { candidateTokens.contains(it) }
+        }
+    }
+
+    private fun tokenize(entity: Map<UUID, Set<Any>>): Set<String> {
+        return propertyTypeIds
+                .flatMap { entity[it] ?: setOf<Any>() }
+                .flatMap { it.toString().toLowerCase().split(NAME_DELIMITER) }
+                .filter { it.isNotEmpty() }
+                .toSet()
+    }
+}
@@ -25,8 +25,12 @@ import com.codahale.metrics.annotation.Timed
 import com.google.common.base.Stopwatch
 import com.openlattice.data.EntityDataKey
 import com.openlattice.linking.EntityKeyPair
+import com.openlattice.linking.LinkingEntity
+import com.openlattice.linking.LinkingFeedbackIndex
 import com.openlattice.linking.Matcher
-import com.openlattice.linking.PostgresLinkingFeedbackService
+import com.openlattice.linking.StreamingBlock
+import com.openlattice.linking.monitoring.InitializeEvent
+import com.openlattice.linking.monitoring.MatchEvent
 import com.openlattice.linking.util.PersonMetric
 import com.openlattice.rhizome.hazelcast.DelegatedStringSet
 import org.apache.olingo.commons.api.edm.FullQualifiedName
@@ -47,13 +51,23 @@ private val logger = LoggerFactory.getLogger(SocratesMatcher::class.java)
 class SocratesMatcher(
         model: MultiLayerNetwork,
         private val fqnToIdMap: Map<FullQualifiedName, UUID>,
-        private val linkingFeedbackService: PostgresLinkingFeedbackService
+        private val feedbackIndex: LinkingFeedbackIndex,
+        private val prefilters: PrefilterCascade
 ) : Matcher {
 
-    private var localModel = ThreadLocal.withInitial { model.clone() }
+    private var localModel = ThreadLocal.withInitial { copyForThread(model) }
 
     override fun updateMatchingModel(model: MultiLayerNetwork) {
-        localModel = ThreadLocal.withInitial { model.clone() }
+        localModel = ThreadLocal.withInitial { copyForThread(model) }
+    }
+
+    private fun copyForThread(model: MultiLayerNetwork): MultiLayerNetwork {
+        logger.info(
+                "Creating matching model for thread {}, which needs up to {} bytes of activations per scored pair.",
+                Thread.currentThread().name,
+                MatchingModels.getActivationBytesPerRow(model)
+        )
+        return MatchingModels.shareParameters(model)
     }
 
     /**
@@ -65,11 +79,13 @@ class SocratesMatcher(
     override fun initialize(
             block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>
     ): Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>> {
+        val event = InitializeEvent()
+        event.begin()
         val model = localModel.get()
 
         val entityDataKey = block.first
-        // negative feedbacks are already filtered out when blocking
-        val entities = block.second
+        // negative feedbacks are already filtered out when blocking, entities that can not match are filtered here
+        val entities = prefilters.filter(entityDataKey, block.second)
 
         // extract properties and features for all entities in block
         val firstProperties = extractProperties(entities.getValue(entityDataKey))
@@ -87,9 +103,68 @@ class SocratesMatcher(
 
         // trim low scores
         trimAndMerge(initializedBlock)
+        commit(event, initializedBlock, block.second.size)
         return initializedBlock
     }
 
+    /**
+     * Initializes a block batch by batch as it is loaded, so that feature extraction and scoring overlap with loading
+     * the rest of the block.
+     * @param block A block of potential matches based on search, which is still being loaded
+     * @return block The resulting block around the candidate of the streaming block
+     */
+    @Timed
+    override fun initialize(
+            block: StreamingBlock
+    ): Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>> {
+        val event = InitializeEvent()
+        event.begin()
+        val model = localModel.get()
+
+        val entityDataKey = block.candidate
+        val firstProperties = extractProperties(block.candidateEntity)
+        val matchedEntities = mutableMapOf<EntityDataKey, Double>()
+        var blockSize = 0
+
+        block.forEach { batch ->
+            blockSize += batch.size
+            // the first batch only contains the candidate, which is never filtered
+            val entities = if (batch.size == 1 && batch[0].first == entityDataKey) {
+                batch.toMap()
+            } else {
+                prefilters.filter(block.candidateEntity, batch.toMap())
+            }
+            if (entities.isNotEmpty()) {
+                val featureKeys = entities.keys.toList()
+                val featureMatrix = featureKeys
+                        .map { extractFeatures(firstProperties, extractProperties(entities.getValue(it))) }
+                        .toTypedArray()
+                matchedEntities.putAll(featureKeys.zip(computeScore(model, featureMatrix).toList()))
+            }
+        }
+
+        val initializedBlock = entityDataKey to mutableMapOf(entityDataKey to matchedEntities)
+
+        // trim low scores
+        trimAndMerge(initializedBlock)
+        commit(event, initializedBlock, blockSize)
+        return initializedBlock
+    }
+
+    private fun commit(
+            event: InitializeEvent,
+            initializedBlock: Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>>,
+            blockSize: Int
+    ) {
+        event.end()
+        if (event.shouldCommit()) {
+            event.candidate(initializedBlock.first)
+            event.blockSize = blockSize
+            event.matchCount = initializedBlock.second[initializedBlock.first]?.size ?: 0
+            event.commit()
+        }
+    }
+
     /**
      * Computes the pairwise matching values for a block.
      * @param block The resulting block around for the entity data key in block.first and property values for each
@@ -100,6 +175,8 @@ class SocratesMatcher(
     override fun match(
             block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>
     ): Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>> {
+        val event = MatchEvent()
+        event.begin()
         val sw = Stopwatch.createStarted()
 
         val entityDataKey = block.first
@@ -109,13 +186,9 @@ class SocratesMatcher(
         // negative feedbacks are already filter out when blocking
         val entities = block.second.mapValues { entity ->
             block.second.keys.filter {
-                val entityPair = EntityKeyPair(entity.key, it)
-                val feedback = linkingFeedbackService.getLinkingFeedback(entityPair)
-                if (feedback != null) {
-                    if (feedback.linked) {
-                        positiveFeedbacks.add(entityPair)
-                        return@filter false
-                    }
+                if (feedbackIndex.isPositive(entity.key, it)) {
+                    positiveFeedbacks.add(EntityKeyPair(entity.key, it))
+                    return@filter false
                 }
                 return@filter true
             }
@@ -138,6 +211,12 @@ class SocratesMatcher(
                 sw.elapsed(TimeUnit.MILLISECONDS)
         )
 
+        event.end()
+        if (event.shouldCommit()) {
+            event.candidate(entityDataKey)
+            event.blockSize = block.second.size
+            event.commit()
+        }
         return entityDataKey to matchedEntities
 
     }
@@ -202,6 +281,18 @@ class SocratesMatcher(
 
     }
 
+    @Timed
+    override fun score(pairs: List<Pair<Map<UUID, Set<Any>>, Map<UUID, Set<Any>>>>): DoubleArray {
+        if (pairs.isEmpty()) {
+            return DoubleArray(0)
+        }
+
+        val featureMatrix = pairs
+                .map { (lhs, rhs) -> extractFeatures(extractProperties(lhs), extractProperties(rhs)) }
+                .toTypedArray()
+        return computeScore(localModel.get(), featureMatrix)
+    }
+
     private fun computeScore(
             model: MultiLayerNetwork, features: Array<DoubleArray>
     ): DoubleArray {
@@ -218,6 +309,14 @@ class SocratesMatcher(
     }
 
     override fun extractProperties(entity: Map<UUID, Set<Any>>): Map<UUID, DelegatedStringSet> {
+        if (entity is LinkingEntity) {
+            // values are already stored as distinct strings
+            return entity.schema.propertyTypeIds
+                    .mapNotNull { propertyTypeId ->
+                        entity.getValues(propertyTypeId)?.let { propertyTypeId to DelegatedStringSet.wrap(it.toSet()) }
+                    }
+                    .toMap()
+        }
         return entity.map { it.key to DelegatedStringSet.wrap(it.value.map(Any::toString).toSet()) }.toMap()
     }
 
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.monitoring
+
+import com.openlattice.data.EntityDataKey
+import jdk.jfr.Category
+import jdk.jfr.Description
+import jdk.jfr.Event
+import jdk.jfr.Label
+import jdk.jfr.Name
+import jdk.jfr.StackTrace
+
+/*
+ * Flight recorder events for each stage of linking a candidate. Their duration is the duration of the stage and they
+ * carry the candidate, so that samples in a recording can be tied to the candidate and stage they were taken in.
+ *
+ * Events are only filled in when [Event.shouldCommit] is true, so they cost next to nothing while no recording is
+ * running.
+ */
+
+internal const val LINKING_CATEGORY = "OpenLattice"
+internal const val LINKER_CATEGORY = "Linker"
+
+/**
+ * Base class for events about a single candidate.
+ */
+@Category(LINKING_CATEGORY, LINKER_CATEGORY)
+@StackTrace(false)
+abstract class CandidateEvent : Event() {
+    @Label("Entity Set Id")
+    @JvmField
+    var entitySetId: String? = null
+
+    @Label("Entity Key Id")
+    @JvmField
+    var entityKeyId: String? = null
+
+    fun candidate(candidate: EntityDataKey) {
+        entitySetId = candidate.entitySetId.toString()
+        entityKeyId = candidate.entityKeyId.toString()
+    }
+}
+
+@Name("com.openlattice.linking.Link")
+@Label("Link Candidate")
+@Description("Blocking, matching and clustering of a single candidate.")
+class LinkEvent : CandidateEvent() {
+    @Label("Linking Id")
+    @JvmField
+    var linkingId: String? = null
+
+    @Label("Block Size")
+    @JvmField
+    var blockSize: Int = 0
+
+    @Label("Cluster Count")
+    @Description("The number of existing clusters the candidate was considered for.")
+    @JvmField
+    var clusterCount: Int = 0
+
+    @Label("Resumed")
+    @Description("Whether linking resumed from a checkpoint of a node that died.")
+    @JvmField
+    var resumed: Boolean = false
+}
+
+@Name("com.openlattice.linking.Block")
+@Label("Block")
+@Description("Searching for and loading the block of a candidate.")
+class BlockEvent : CandidateEvent() {
+    @Label("Block Size")
+    @JvmField
+    var blockSize: Int = 0
+
+    @Label("Streaming")
+    @Description("Whether the block was handed to matching while loading. The duration only covers the search then.")
+    @JvmField
+    var streaming: Boolean = false
+}
+
+@Name("com.openlattice.linking.Initialize")
+@Label("Initialize Block")
+@Description("Scoring a candidate against its block.")
+class InitializeEvent : CandidateEvent() {
+    @Label("Block Size")
+    @JvmField
+    var blockSize: Int = 0
+
+    @Label("Match Count")
+    @JvmField
+    var matchCount: Int = 0
+}
+
+@Name("com.openlattice.linking.Match")
+@Label("Match Block")
+@Description("Scoring all pairs of entities in a block.")
+class MatchEvent : CandidateEvent() {
+    @Label("Block Size")
+    @JvmField
+    var blockSize: Int = 0
+}
+
+@Name("com.openlattice.linking.ClusterCommit")
+@Label("Lock, Cluster and Commit")
+@Description("Locking the clusters of a candidate's matches, choosing a cluster and committing the match scores.")
+class ClusterCommitEvent : CandidateEvent() {
+    @Label("Cluster Count")
+    @JvmField
+    var clusterCount: Int = 0
+
+    @Label("New Cluster")
+    @JvmField
+    var newCluster: Boolean = false
+}
+
+@Name("com.openlattice.linking.LoadEntities")
+@Label("Load Entities")
+@Description("Loading the properties of entities from the database.")
+@Category(LINKING_CATEGORY, LINKER_CATEGORY)
+@StackTrace(false)
+class LoadEntitiesEvent : Event() {
+    @Label("Entity Count")
+    @JvmField
+    var entityCount: Int = 0
+
+    @Label("Entity Set Count")
+    @JvmField
+    var entitySetCount: Int = 0
+}
+
+/**
+ * The linking events, to enable in recordings.
+ */
+val LINKING_EVENTS = listOf(
+        LinkEvent::class.java,
+        BlockEvent::class.java,
+        InitializeEvent::class.java,
+        MatchEvent::class.java,
+        ClusterCommitEvent::class.java,
+        LoadEntitiesEvent::class.java
+)
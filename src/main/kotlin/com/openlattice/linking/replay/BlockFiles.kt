@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.replay
+
+import com.google.common.hash.Hashing
+import com.openlattice.data.EntityDataKey
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import java.io.*
+import java.nio.charset.StandardCharsets
+import java.util.*
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/*
+ * Block files hold blocks captured from linking, so that matching and clustering can be replayed offline. They are
+ * gzipped and start with a header of the magic number, the format version and the property types of the matching
+ * model. Each block is a marker byte followed by a dictionary of the entity sets and property types it uses, the
+ * candidate and the entities of the block, with entity sets and property types written as indexes into the
+ * dictionary. A zero marker byte ends the file.
+ */
+
+private const val BLOCK_FILE_MAGIC = 0x4c4e4b42 // "LNKB"
+private const val BLOCK_FILE_VERSION = 1
+private const val BLOCK_MARKER = 1
+private const val END_MARKER = 0
+
+/**
+ * Longer values are truncated, so that they fit in a modified UTF-8 string.
+ */
+private const val MAX_VALUE_LENGTH = 16_000
+
+/**
+ * Writes blocks to a block file.
+ *
+ * @param fqnToIdMap The property types of the matching model, so that a matcher can be built for replay.
+ * @param hasher Replaces every value before it is written, if values must not leave the linker.
+ */
+class BlockWriter(
+        output: OutputStream,
+        fqnToIdMap: Map<FullQualifiedName, UUID>,
+        private val hasher: ValueHasher? = null
+) : Closeable {
+    private val out = DataOutputStream(BufferedOutputStream(GZIPOutputStream(output, true)))
+
+    init {
+        out.writeInt(BLOCK_FILE_MAGIC)
+        out.writeInt(BLOCK_FILE_VERSION)
+        out.writeInt(fqnToIdMap.size)
+        fqnToIdMap.forEach { (fqn, id) ->
+            out.writeUTF(fqn.fullQualifiedNameAsString)
+            writeUuid(id)
+        }
+    }
+
+    fun write(block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>) {
+        val entitySetIds = block.second.keys.map { it.entitySetId }.distinct()
+        val propertyTypeIds = block.second.values.flatMap { it.keys }.distinct()
+        val entitySetIndexes = entitySetIds.withIndex().associate { it.value to it.index }
+        val propertyTypeIndexes = propertyTypeIds.withIndex().associate { it.value to it.index }
+
+        out.writeByte(BLOCK_MARKER)
+        out.writeInt(entitySetIds.size)
+        entitySetIds.forEach(::writeUuid)
+        out.writeInt(propertyTypeIds.size)
+        propertyTypeIds.forEach(::writeUuid)
+
+        writeUuid(block.first.entitySetId)
+        writeUuid(block.first.entityKeyId)
+        out.writeInt(block.second.size)
+        block.second.forEach { (dataKey, entity) ->
+            out.writeInt(entitySetIndexes.getValue(dataKey.entitySetId))
+            writeUuid(dataKey.entityKeyId)
+            out.writeInt(entity.size)
+            entity.forEach { (propertyTypeId, values) ->
+                out.writeInt(propertyTypeIndexes.getValue(propertyTypeId))
+                out.writeInt(values.size)
+                values.forEach { value ->
+                    val text = value.toString().take(MAX_VALUE_LENGTH)
+                    out.writeUTF(hasher?.hash(text) ?: text)
+                }
+            }
+        }
+    }
+
+    /**
+     * Flushes written blocks to the underlying stream, so that they can be read even if the writer is never closed.
+     */
+    fun flush() {
+        out.flush()
+    }
+
+    override fun close() {
+        out.writeByte(END_MARKER)
+        out.close()
+    }
+
+    private fun writeUuid(id: UUID) {
+        out.writeLong(id.mostSignificantBits)
+        out.writeLong(id.leastSignificantBits)
+    }
+}
+
+/**
+ * Reads the blocks of a block file in the order they were written. Values are read back as strings.
+ */
+class BlockReader(input: InputStream) : Closeable {
+    private val data = DataInputStream(BufferedInputStream(GZIPInputStream(input)))
+
+    /**
+     * The property types of the matching model the blocks were captured with.
+     */
+    val fqnToIdMap: Map<FullQualifiedName, UUID>
+
+    init {
+        check(data.readInt() == BLOCK_FILE_MAGIC) { "Not a block file." }
+        val version = data.readInt()
+        check(version == BLOCK_FILE_VERSION) { "Unsupported block file version $version." }
+        fqnToIdMap = (1..data.readInt()).associate { FullQualifiedName(data.readUTF()) to readUuid() }
+    }
+
+    /**
+     * @return The next block or null at the end of the file. Files that were not closed properly end at the last
+     * complete block.
+     */
+    fun read(): Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>? {
+        return try {
+            if (data.readByte().toInt() != BLOCK_MARKER) {
+                return null
+            }
+            val entitySetIds = (1..data.readInt()).map { readUuid() }
+            val propertyTypeIds = (1..data.readInt()).map { readUuid() }
+
+            val candidate = EntityDataKey(readUuid(), readUuid())
+            val entities = (1..data.readInt()).associate { _ ->
+                val dataKey = EntityDataKey(entitySetIds[data.readInt()], readUuid())
+                dataKey to (1..data.readInt()).associate { _ ->
+                    propertyTypeIds[data.readInt()] to (1..data.readInt()).map { data.readUTF() }.toSet<Any>()
+                }
+            }
+            candidate to entities
+        } catch (ex: EOFException) {
+            null
+        }
+    }
+
+    fun asSequence(): Sequence<Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>> {
+        return generateSequence { read() }
+    }
+
+    override fun close() {
+        data.close()
+    }
+
+    private fun readUuid(): UUID {
+        return UUID(data.readLong(), data.readLong())
+    }
+}
+
+/**
+ * Replaces values with pseudonyms of the same shape: every digit is replaced by a digit, every letter by a letter of
+ * the same case and everything else is kept. Equal values get equal pseudonyms, so exact matches between entities and
+ * the formats prefilters depend on survive, while similarity between different values does not.
+ *
+ * @param salt A secret that is not written to the block file, so that pseudonyms cannot be reversed by hashing guesses.
+ */
+class ValueHasher(private val salt: ByteArray) {
+    fun hash(value: String): String {
+        val hash = Hashing.sha256().newHasher().putBytes(salt).putString(value, StandardCharsets.UTF_8).hash()
+        val random = Random(hash.asLong())
+        val pseudonym = StringBuilder(value.length)
+        value.forEach { c ->
+            pseudonym.append(
+                    when {
+                        Character.isDigit(c) -> '0' + random.nextInt(10)
+                        Character.isUpperCase(c) -> 'A' + random.nextInt(26)
+                        Character.isLowerCase(c) -> 'a' + random.nextInt(26)
+                        else -> c
+                    }
+            )
+        }
+        return pseudonym.toString()
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.replay
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.LinkingConfiguration
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.slf4j.LoggerFactory
+import java.io.FileOutputStream
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.security.SecureRandom
+import java.time.Instant
+import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import javax.annotation.PreDestroy
+
+/**
+ * Blocks can be large, so only a few are held while they wait to be written.
+ */
+private const val CAPTURE_QUEUE_SIZE = 8
+
+/**
+ * Captures the blocks linked by this node into a block file in [LinkingConfiguration.blockCaptureDirectory], so that
+ * they can be replayed with [BlockReplay]. Capture is disabled if no directory is configured and stops after
+ * [LinkingConfiguration.blockCaptureLimit] blocks.
+ *
+ * Blocks are written by a background thread, so that linking never waits on the file. Blocks recorded while the
+ * writer is behind are dropped.
+ *
+ * If [LinkingConfiguration.blockCaptureHashing] is enabled, values are replaced with pseudonyms by a [ValueHasher]
+ * with a salt that is only kept in memory. Replayed blocks then have the shape of production blocks, but not their
+ * scores.
+ */
+class BlockRecorder(
+        configuration: LinkingConfiguration,
+        fqnToIdMap: Map<FullQualifiedName, UUID>,
+        metricRegistry: MetricRegistry
+) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(BlockRecorder::class.java)
+    }
+
+    private val limit = configuration.blockCaptureLimit
+    private val captured = metricRegistry.counter(MetricRegistry.name(BlockRecorder::class.java, "captured"))
+    private val dropped = metricRegistry.counter(MetricRegistry.name(BlockRecorder::class.java, "dropped"))
+    private val blocks = ArrayBlockingQueue<Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>>(
+            CAPTURE_QUEUE_SIZE
+    )
+
+    @Volatile
+    private var capturing = false
+    private var capture: ExecutorService? = null
+
+    init {
+        if (configuration.blockCaptureDirectory.isNotBlank()) {
+            val directory = Files.createDirectories(Paths.get(configuration.blockCaptureDirectory))
+            val file = directory.resolve("blocks-${Instant.now().toEpochMilli()}.lnkb")
+            val hasher = if (configuration.blockCaptureHashing) {
+                val salt = ByteArray(32)
+                SecureRandom().nextBytes(salt)
+                ValueHasher(salt)
+            } else {
+                null
+            }
+            val writer = BlockWriter(FileOutputStream(file.toFile()), fqnToIdMap, hasher)
+            capturing = true
+            capture = Executors.newSingleThreadExecutor(
+                    ThreadFactoryBuilder().setDaemon(true).setNameFormat("block-capture").build()
+            ).also { it.execute { writeBlocks(writer) } }
+            logger.info("Capturing up to {} linking blocks to {}", limit, file)
+        }
+    }
+
+    /**
+     * Hands a block to the writer, if capture is enabled and the limit has not been reached yet.
+     */
+    fun record(block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>) {
+        if (capturing && !blocks.offer(block)) {
+            dropped.inc()
+        }
+    }
+
+    /**
+     * Writes blocks until the limit is reached or capture is closed. Failures are logged and stop capture.
+     */
+    private fun writeBlocks(writer: BlockWriter) {
+        var count = 0L
+        try {
+            while (count < limit) {
+                val block = blocks.take()
+                try {
+                    writer.write(block)
+                    writer.flush()
+                } catch (ex: Exception) {
+                    logger.error("Unable to capture linking block of {}. Stopping capture.", block.first, ex)
+                    return
+                }
+                captured.inc()
+                count++
+            }
+            logger.info("Captured {} linking blocks.", count)
+        } catch (ex: InterruptedException) {
+            logger.info("Stopped capturing linking blocks after {} blocks.", count)
+        } finally {
+            capturing = false
+            blocks.clear()
+            try {
+                writer.close()
+            } catch (ex: Exception) {
+                logger.error("Unable to close block capture file.", ex)
+            }
+        }
+    }
+
+    @PreDestroy
+    fun close() {
+        capture?.shutdownNow()
+    }
+}
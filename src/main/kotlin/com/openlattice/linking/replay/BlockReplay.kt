@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.replay
+
+import com.codahale.metrics.MetricRegistry
+import com.dataloom.mappers.ObjectMappers
+import com.google.common.base.Stopwatch
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.serializers.FullQualifiedNameJacksonSerializer
+import com.openlattice.linking.*
+import com.openlattice.linking.matching.*
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork
+import org.slf4j.LoggerFactory
+import java.io.FileInputStream
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+private val PERCENTILES = listOf(0.5, 0.9, 0.99, 1.0)
+
+/**
+ * Replays block files captured by [BlockRecorder] through initialization and clustering with the matching model on the
+ * classpath and reports throughput and latency percentiles, so that changes to matching can be measured on the shapes
+ * of production blocks.
+ *
+ * Each candidate is clustered with the entities it matched, the way it would start a new cluster, since the existing
+ * clusters of the captured blocks are not captured. Feedback is not applied.
+ */
+object BlockReplay {
+    private val logger = LoggerFactory.getLogger(BlockReplay::class.java)
+
+    /**
+     * @param args The paths of the block files to replay.
+     */
+    @JvmStatic
+    fun main(args: Array<String>) {
+        require(args.isNotEmpty()) { "Expected the paths of the block files to replay." }
+        val model = MatchingModels.loadKerasModel()
+        val configuration = loadConfiguration()
+        args.forEach { path ->
+            FileInputStream(path).use { input ->
+                BlockReader(input).use { reader ->
+                    val report = replay(reader.asSequence(), buildMatcher(model, reader.fqnToIdMap, configuration))
+                    logger.info("Replayed {}:\n{}", path, report)
+                }
+            }
+        }
+    }
+
+    fun replay(
+            blocks: Sequence<Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>>,
+            matcher: Matcher
+    ): ReplayReport {
+        val initialization = mutableListOf<Long>()
+        val clustering = mutableListOf<Long>()
+        var entities = 0L
+        val total = Stopwatch.createStarted()
+        val sw = Stopwatch.createUnstarted()
+
+        blocks.forEach { block ->
+            val candidate = block.first
+            entities += block.second.size
+
+            sw.reset().start()
+            val initializedBlock = matcher.initialize(StreamingBlock.of(block))
+            initialization.add(sw.elapsed(TimeUnit.MICROSECONDS))
+
+            sw.reset().start()
+            val matches = initializedBlock.second[candidate]?.keys ?: setOf()
+            val cluster = block.second.filterKeys { matches.contains(it) || it == candidate }
+            completeLinkCluster(matcher.match(candidate to cluster).second)
+            clustering.add(sw.elapsed(TimeUnit.MICROSECONDS))
+        }
+
+        return ReplayReport(
+                initialization.size,
+                entities,
+                total.elapsed(TimeUnit.MILLISECONDS),
+                initialization.toLongArray(),
+                clustering.toLongArray()
+        )
+    }
+
+    /**
+     * Reads the linking configuration on the classpath, so that blocks are replayed with the prefilters linker nodes
+     * are configured with.
+     */
+    private fun loadConfiguration(): LinkingConfiguration {
+        val mapper = ObjectMappers.getYamlMapper()
+        FullQualifiedNameJacksonSerializer.registerWithMapper(mapper)
+        val input = checkNotNull(Thread.currentThread().contextClassLoader.getResourceAsStream(CONFIG_YAML_NAME)) {
+            "Unable to find $CONFIG_YAML_NAME on the classpath."
+        }
+        return input.use { mapper.readValue(it, LinkingConfiguration::class.java) }
+    }
+
+    private fun buildMatcher(
+            model: MultiLayerNetwork,
+            fqnToIdMap: Map<FullQualifiedName, UUID>,
+            configuration: LinkingConfiguration
+    ): Matcher {
+        val metricRegistry = MetricRegistry()
+        return SocratesMatcher(
+                model,
+                fqnToIdMap,
+                LinkingFeedbackIndex { listOf() },
+                PrefilterCascade.fromConfiguration(
+                        configuration.prefilters,
+                        configuration.birthDateBandDays,
+                        fqnToIdMap,
+                        metricRegistry
+                )
+        )
+    }
+}
+
+/**
+ * The result of replaying block files, with latencies in microseconds.
+ */
+class ReplayReport(
+        val blocks: Int,
+        val entities: Long,
+        val elapsedMillis: Long,
+        initialization: LongArray,
+        clustering: LongArray
+) {
+    val initialization: LongArray = initialization.sortedArray()
+    val clustering: LongArray = clustering.sortedArray()
+
+    override fun toString(): String {
+        val seconds = Math.max(elapsedMillis, 1L) / 1000.0
+        return listOf(
+                "blocks: $blocks (${"%.1f".format(blocks / seconds)}/s)",
+                "entities: $entities (${"%.1f".format(entities / seconds)}/s)",
+                "initialization us: ${formatPercentiles(initialization)}",
+                "clustering us: ${formatPercentiles(clustering)}"
+        ).joinToString("\n")
+    }
+
+    private fun formatPercentiles(latencies: LongArray): String {
+        return PERCENTILES.joinToString(", ") { "p${"%.0f".format(it * 100)}=${percentile(latencies, it)}" }
+    }
+}
+
+/**
+ * @return The nearest rank percentile of sorted latencies, or 0 if there are none.
+ */
+internal fun percentile(sorted: LongArray, percentile: Double): Long {
+    if (sorted.isEmpty()) {
+        return 0L
+    }
+    val rank = Math.ceil(percentile * sorted.size).toInt()
+    return sorted[Math.min(Math.max(rank, 1), sorted.size) - 1]
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.scheduling
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.hazelcast.core.HazelcastInstance
+import com.hazelcast.core.IMap
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.mix
+import org.slf4j.LoggerFactory
+import java.time.Instant
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import javax.annotation.PreDestroy
+
+private const val LINKER_NODES_MAP = "linker_nodes"
+private const val LINKER_HEARTBEAT_RATE = 5_000L
+private const val LINKER_NODE_TTL_MILLIS = 20_000L
+
+/**
+ * Assigns the Hazelcast partitions of linking candidates to the live linker nodes, so that each candidate has an owning
+ * node.
+ *
+ * Linker nodes are Hazelcast clients and never own partitions themselves, so they announce themselves through
+ * heartbeats in a shared map and each partition is assigned by rendezvous hashing over the live nodes. Every node
+ * computes the same assignment from the same membership, and only the partitions of nodes that joined or left move when
+ * the membership changes.
+ *
+ * Heartbeats run on their own thread rather than the shared scheduler, so that slow scheduled work on this node cannot
+ * delay them past the node TTL and make other nodes take over its partitions. For the same reason, membership listeners
+ * are called on a separate thread, one change at a time.
+ */
+class LinkerPartitions(private val hazelcast: HazelcastInstance, metricRegistry: MetricRegistry) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(LinkerPartitions::class.java)
+    }
+
+    val nodeId: UUID = UUID.randomUUID()
+
+    private val nodes: IMap<UUID, Long> = hazelcast.getMap(LINKER_NODES_MAP)
+    private val listeners = CopyOnWriteArrayList<() -> Unit>()
+    private val heartbeats = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("linker-heartbeat").build()
+    )
+    private val membershipChanges = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("linker-membership").build()
+    )
+
+    @Volatile
+    private var members: List<UUID> = listOf(nodeId)
+
+    init {
+        metricRegistry.register(
+                MetricRegistry.name(LinkerPartitions::class.java, "nodes"),
+                Gauge<Int> { members.size }
+        )
+        heartbeat()
+        heartbeats.scheduleAtFixedRate(
+                ::heartbeat,
+                LINKER_HEARTBEAT_RATE,
+                LINKER_HEARTBEAT_RATE,
+                TimeUnit.MILLISECONDS
+        )
+    }
+
+    /**
+     * @return True if this node owns the partition of the candidate.
+     */
+    fun isLocal(candidate: EntityDataKey): Boolean {
+        return assignPartition(hazelcast.partitionService.getPartition(candidate).partitionId, members) == nodeId
+    }
+
+    fun getNodeCount(): Int {
+        return members.size
+    }
+
+    /**
+     * @return The live linker nodes, including this one.
+     */
+    fun getNodes(): List<UUID> {
+        return members
+    }
+
+    /**
+     * Registers a listener that is called after the live linker nodes change. Listeners are not called on the heartbeat
+     * thread, so they may take longer than a heartbeat.
+     */
+    fun onMembershipChange(listener: () -> Unit) {
+        listeners.add(listener)
+    }
+
+    /**
+     * Announces this node and refreshes the live linker nodes.
+     */
+    fun heartbeat() {
+        try {
+            nodes.set(nodeId, Instant.now().toEpochMilli(), LINKER_NODE_TTL_MILLIS, TimeUnit.MILLISECONDS)
+            val current = (nodes.keys + nodeId).sorted()
+            if (current != members) {
+                logger.info("Linker nodes changed from {} to {}", members, current)
+                members = current
+                membershipChanges.execute(::notifyListeners)
+            }
+        } catch (ex: Exception) {
+            logger.error("Unable to refresh linker nodes.", ex)
+        }
+    }
+
+    private fun notifyListeners() {
+        listeners.forEach { listener ->
+            try {
+                listener()
+            } catch (ex: Exception) {
+                logger.error("Unable to handle linker membership change.", ex)
+            }
+        }
+    }
+
+    @PreDestroy
+    fun leave() {
+        heartbeats.shutdownNow()
+        membershipChanges.shutdownNow()
+        nodes.delete(nodeId)
+    }
+}
+
+/**
+ * Assigns a partition to the node with the highest hash of the partition and node.
+ */
+internal fun assignPartition(partitionId: Int, nodes: Collection<UUID>): UUID {
+    return nodes.maxBy { node ->
+        mix(mix(node.mostSignificantBits xor partitionId.toLong()) + node.leastSignificantBits)
+    }!!
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.scheduling
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.Timer
+import com.openlattice.data.EntityDataKey
+import java.time.Clock
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Schedules linking candidates across entity sets using start-time fair queueing.
+ *
+ * Each entity set has its own sub-queue and a weight. Every time a candidate is dispatched from a sub-queue, the
+ * virtual time of that sub-queue advances by the inverse of its weight and the next candidate is always taken from the
+ * non-empty sub-queue with the lowest virtual time. A sub-queue with weight 3 is therefore served three times as often
+ * as one with weight 1, and a noisy entity set cannot starve small ones. Sub-queues whose oldest candidate has waited
+ * longer than [maxWaitMillis] are served first, oldest first.
+ *
+ * Requests for the same candidate are coalesced: a candidate is only ever queued once, is held back until
+ * [coalesceWindowMillis] have passed since it was last requested so that rapidly repeated requests collapse into a
+ * single link, and a candidate that is requested again while it is being linked is linked once more after it
+ * completes. Candidates are never held back for longer than [maxWaitMillis].
+ *
+ * @param weights Provides the weight of an entity set. Weights must be positive.
+ * @param maxWaitMillis How long a candidate may wait before its sub-queue is boosted ahead of fair ordering.
+ * @param coalesceWindowMillis How long a candidate is held back before it may be dispatched.
+ */
+class WeightedFairScheduler(
+        private val weights: (UUID) -> Double,
+        private val maxWaitMillis: Long,
+        private val metricRegistry: MetricRegistry,
+        private val clock: Clock = Clock.systemUTC(),
+        private val coalesceWindowMillis: Long = 0
+) {
+    private val lock = ReentrantLock()
+    private val notEmpty = lock.newCondition()
+    private val queues = mutableMapOf<UUID, SubQueue>()
+    private var virtualTime = 0.0
+    private var size = 0
+
+    private val queued = mutableSetOf<EntityDataKey>()
+    private val inFlight = mutableSetOf<EntityDataKey>()
+    private val relink = mutableSetOf<EntityDataKey>()
+
+    private val coalesced = metricRegistry.counter(MetricRegistry.name(WeightedFairScheduler::class.java, "coalesced"))
+    private val relinked = metricRegistry.counter(MetricRegistry.name(WeightedFairScheduler::class.java, "relinked"))
+
+    /**
+     * Adds a candidate to the sub-queue of its entity set, unless it is already queued or being linked.
+     *
+     * @return True if the candidate was queued, false if it was coalesced with a pending request.
+     */
+    fun offer(candidate: EntityDataKey): Boolean {
+        lock.withLock {
+            if (queued.contains(candidate) || inFlight.contains(candidate)) {
+                coalesced.inc()
+                return false
+            }
+            enqueue(candidate)
+            return true
+        }
+    }
+
+    fun offerAll(candidates: Iterable<EntityDataKey>) {
+        candidates.forEach { offer(it) }
+    }
+
+    /**
+     * Marks a candidate that is linked outside of the scheduler as in flight, unless it is already queued or in flight.
+     *
+     * @return True if the candidate was claimed, in which case [complete] must be called once it has been linked.
+     */
+    fun claim(candidate: EntityDataKey): Boolean {
+        lock.withLock {
+            if (queued.contains(candidate) || inFlight.contains(candidate)) {
+                return false
+            }
+            inFlight.add(candidate)
+            return true
+        }
+    }
+
+    /**
+     * Requests that a pending candidate be linked against its latest data. A queued candidate will already be linked
+     * against its latest data, but is held back for another coalescing window. A candidate that is currently being
+     * linked will be queued again once, after the link in flight completes.
+     *
+     * @return True if the candidate was pending, false if it must be offered separately.
+     */
+    fun requestRelink(candidate: EntityDataKey): Boolean {
+        lock.withLock {
+            return when {
+                queued.contains(candidate) -> {
+                    coalesced.inc()
+                    extendWindow(candidate)
+                    true
+                }
+                inFlight.contains(candidate) -> {
+                    if (!relink.add(candidate)) {
+                        coalesced.inc()
+                    }
+                    true
+                }
+                else -> false
+            }
+        }
+    }
+
+    /**
+     * Retrieves the next candidate to link, waiting if no candidates are available. The candidate is considered in
+     * flight until [complete] is called for it.
+     */
+    fun take(): EntityDataKey {
+        lock.withLock {
+            while (true) {
+                while (size == 0) {
+                    notEmpty.await()
+                }
+                val now = clock.millis()
+                val ready = queues.values.filter { it.candidates.isNotEmpty() && it.candidates.first().readyAt <= now }
+
+                if (ready.isEmpty()) {
+                    val nextReady = queues.values
+                            .filter { it.candidates.isNotEmpty() }
+                            .map { it.candidates.first().readyAt }
+                            .min()!!
+                    notEmpty.await(nextReady - now, TimeUnit.MILLISECONDS)
+                    continue
+                }
+
+                val queue = selectAged(ready, now) ?: ready.minBy { it.virtualTime }!!
+
+                val next = queue.candidates.removeFirst()
+                size--
+                virtualTime = queue.virtualTime
+                queue.virtualTime += 1.0 / queue.weight
+                queue.waitTimer.update(now - next.enqueuedAt, TimeUnit.MILLISECONDS)
+
+                queued.remove(next.candidate)
+                inFlight.add(next.candidate)
+                return next.candidate
+            }
+        }
+    }
+
+    /**
+     * Marks a candidate as no longer in flight.
+     *
+     * @return True if the candidate was requested again while it was being linked and has been queued again.
+     */
+    fun complete(candidate: EntityDataKey): Boolean {
+        lock.withLock {
+            inFlight.remove(candidate)
+            if (relink.remove(candidate)) {
+                relinked.inc()
+                enqueue(candidate)
+                return true
+            }
+            return false
+        }
+    }
+
+    /**
+     * Removes queued candidates that match a predicate. Candidates in flight are not affected.
+     *
+     * @return The removed candidates.
+     */
+    fun removeIf(predicate: (EntityDataKey) -> Boolean): List<EntityDataKey> {
+        lock.withLock {
+            val removed = mutableListOf<EntityDataKey>()
+            queues.values.forEach { queue ->
+                queue.candidates.removeIf { queuedCandidate ->
+                    val remove = predicate(queuedCandidate.candidate)
+                    if (remove) {
+                        removed.add(queuedCandidate.candidate)
+                    }
+                    remove
+                }
+            }
+            queued.removeAll(removed)
+            size -= removed.size
+            return removed
+        }
+    }
+
+    /**
+     * @return True if the candidate is being linked.
+     */
+    fun isInFlight(candidate: EntityDataKey): Boolean {
+        return lock.withLock { inFlight.contains(candidate) }
+    }
+
+    /**
+     * @return True if the candidate is queued or being linked.
+     */
+    fun isPending(candidate: EntityDataKey): Boolean {
+        return lock.withLock { queued.contains(candidate) || inFlight.contains(candidate) }
+    }
+
+    /**
+     * @return The number of queued candidates in the entity set.
+     */
+    fun depth(entitySetId: UUID): Int {
+        return lock.withLock { queues[entitySetId]?.candidates?.size ?: 0 }
+    }
+
+    fun size(): Int {
+        return lock.withLock { size }
+    }
+
+    private fun enqueue(candidate: EntityDataKey) {
+        val queue = queues.getOrPut(candidate.entitySetId) { newSubQueue(candidate.entitySetId) }
+        if (queue.candidates.isEmpty()) {
+            //Idle sub-queues do not accumulate credit while they are empty.
+            queue.virtualTime = maxOf(queue.virtualTime, virtualTime)
+        }
+        val now = clock.millis()
+        queue.candidates.addLast(QueuedCandidate(candidate, now, now + coalesceWindowMillis))
+        queued.add(candidate)
+        size++
+        notEmpty.signal()
+    }
+
+    /**
+     * Moves a queued candidate to the back of its sub-queue, ready once the coalescing window has passed again. Since
+     * all candidates are held back for the same window, the sub-queue stays ordered by when candidates become ready.
+     * Candidates that would be held back for longer than [maxWaitMillis] are left where they are.
+     */
+    private fun extendWindow(candidate: EntityDataKey) {
+        val queue = queues[candidate.entitySetId] ?: return
+        val queuedCandidate = queue.candidates.firstOrNull { it.candidate == candidate } ?: return
+        val readyAt = clock.millis() + coalesceWindowMillis
+        if (readyAt <= queuedCandidate.readyAt || readyAt - queuedCandidate.enqueuedAt > maxWaitMillis) {
+            return
+        }
+        queue.candidates.remove(queuedCandidate)
+        queue.candidates.addLast(queuedCandidate.copy(readyAt = readyAt))
+    }
+
+    private fun selectAged(ready: List<SubQueue>, now: Long): SubQueue? {
+        return ready
+                .filter { now - it.candidates.first().enqueuedAt >= maxWaitMillis }
+                .minBy { it.candidates.first().enqueuedAt }
+    }
+
+    private fun newSubQueue(entitySetId: UUID): SubQueue {
+        val weight = weights(entitySetId)
+        require(weight > 0) { "Weight for entity set $entitySetId must be positive." }
+
+        val queue = SubQueue(
+                weight,
+                metricRegistry.timer(MetricRegistry.name(WeightedFairScheduler::class.java, "wait", entitySetId.toString()))
+        )
+        //Registering the same gauge twice throws, so an existing depth gauge for the entity set is reused.
+        metricRegistry.gauge(MetricRegistry.name(WeightedFairScheduler::class.java, "depth", entitySetId.toString())) {
+            Gauge<Int> { depth(entitySetId) }
+        }
+        return queue
+    }
+
+    private class SubQueue(val weight: Double, val waitTimer: Timer) {
+        val candidates = ArrayDeque<QueuedCandidate>()
+        var virtualTime = 0.0
+    }
+
+    private data class QueuedCandidate(val candidate: EntityDataKey, val enqueuedAt: Long, val readyAt: Long)
+}
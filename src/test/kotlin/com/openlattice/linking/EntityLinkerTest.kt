@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.conductor.rpc.SearchConfiguration
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.blocking.BlockBudget
+import com.openlattice.linking.blocking.OversizedClusterPolicy
+import com.openlattice.linking.clustering.ClusterSummaries
+import com.openlattice.linking.loadtest.*
+import com.openlattice.linking.replay.BlockRecorder
+import com.openlattice.rhizome.hazelcast.DelegatedStringSet
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+private const val STORED_SCORE = 0.95
+private const val CANDIDATE_SCORE = 0.97
+private const val RESCORED_SCORE = 0.99
+
+class EntityLinkerTest {
+    private val fqnToIdMap = listOf(GIVEN_NAME_FQN, MIDDLE_NAME_FQN, SURNAME_FQN, BIRTH_DATE_FQN, SEX_FQN)
+            .associate { it to UUID.randomUUID() }
+    private val entitySetId = UUID.randomUUID()
+    private val linkingId = UUID.randomUUID()
+
+    @Test
+    fun testTruncatedClusterKeepsStoredScores() {
+        assertJoinKeepsStoredScores(configuration().copy(blockSize = 5, exactClusterSize = 1_000))
+    }
+
+    @Test
+    fun testSummarizedClusterKeepsStoredScores() {
+        assertJoinKeepsStoredScores(
+                configuration().copy(blockSize = 100, exactClusterSize = 5, clusterRepresentatives = 3)
+        )
+    }
+
+    /**
+     * Commits a candidate into a cluster of twelve members that is only partially scored against the candidate and
+     * checks that the stored scores among the members are unchanged, while the candidate joins with its own scores.
+     */
+    private fun assertJoinKeepsStoredScores(configuration: LinkingConfiguration) {
+        val metricRegistry = MetricRegistry()
+        val entities = InMemoryEntities(fqnToIdMap)
+        val queries = InMemoryLinkingQueries()
+
+        val members = (1..12).map { EntityDataKey(entitySetId, UUID.randomUUID()) }
+        members.forEach { entities.add(it, person()) }
+        val stored = members.associateWith { lhs -> (members - lhs).associateWith { STORED_SCORE } }
+        queries.lockClustersDoWorkAndCommit(members.first(), members.toSet()) { Triple(linkingId, stored, true) }
+        members.forEach { queries.updateLinkingInformation(linkingId, it, mapOf()) }
+
+        val candidate = EntityDataKey(entitySetId, UUID.randomUUID())
+        entities.add(candidate, person())
+
+        val linker = EntityLinker(
+                entities,
+                FixedScoreMatcher(),
+                entityKeyIdService(InMemoryIds()),
+                entities,
+                linkingQueryService(queries),
+                Mockito.mock(PostgresLinkingFeedbackService::class.java),
+                LinkingFeedbackIndex { listOf() },
+                BlockBudget(configuration, metricRegistry),
+                ClusterSummaries(configuration, metricRegistry),
+                NoOpLinkingJournal(),
+                BlockRecorder(configuration, fqnToIdMap, metricRegistry)
+        )
+        Assert.assertEquals(linkingId, linker.link(candidate))
+
+        val cluster = queries.getClustersForIds(setOf(candidate)).getValue(linkingId)
+        stored.forEach { (lhs, scores) ->
+            scores.forEach { (rhs, score) -> Assert.assertEquals(score, cluster.getValue(lhs).getValue(rhs), 0.0) }
+        }
+        Assert.assertTrue(cluster.getValue(candidate).isNotEmpty())
+        Assert.assertTrue(cluster.getValue(candidate).values.all { it == CANDIDATE_SCORE })
+    }
+
+    private fun person(): Map<UUID, Set<Any>> {
+        return mapOf(
+                fqnToIdMap.getValue(GIVEN_NAME_FQN) to setOf<Any>("JOHN"),
+                fqnToIdMap.getValue(SURNAME_FQN) to setOf<Any>("SMITH"),
+                fqnToIdMap.getValue(BIRTH_DATE_FQN) to setOf<Any>("1970-01-01")
+        )
+    }
+
+    private fun configuration(): LinkingConfiguration {
+        return LinkingConfiguration(
+                SearchConfiguration("localhost", "cluster", 9300, Optional.empty(), Optional.empty()),
+                whitelist = Optional.empty(),
+                oversizedClusterPolicy = OversizedClusterPolicy.TRUNCATE,
+                warmupEnabled = false
+        )
+    }
+
+    /**
+     * Scores every pair with the candidate of a block at [CANDIDATE_SCORE] and every other pair at [RESCORED_SCORE],
+     * so that rescored pairs among existing members are told apart from their stored scores.
+     */
+    private class FixedScoreMatcher : Matcher {
+        override fun initialize(
+                block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>
+        ): Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>> {
+            val scores = (block.second.keys - block.first).associateWithTo(mutableMapOf()) { CANDIDATE_SCORE }
+            return block.first to mutableMapOf(block.first to scores)
+        }
+
+        override fun match(
+                block: Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>>
+        ): Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>> {
+            val candidate = block.first
+            val scores = block.second.keys.associateWithTo(mutableMapOf()) { lhs ->
+                (block.second.keys - lhs).associateWithTo(mutableMapOf()) { rhs ->
+                    if (lhs == candidate || rhs == candidate) CANDIDATE_SCORE else RESCORED_SCORE
+                }
+            }
+            return candidate to scores
+        }
+
+        override fun score(pairs: List<Pair<Map<UUID, Set<Any>>, Map<UUID, Set<Any>>>>): DoubleArray {
+            return DoubleArray(pairs.size) { CANDIDATE_SCORE }
+        }
+
+        override fun trimAndMerge(
+                matchedBlock: Pair<EntityDataKey, MutableMap<EntityDataKey, MutableMap<EntityDataKey, Double>>>
+        ) {
+        }
+
+        override fun updateMatchingModel(model: MultiLayerNetwork) {
+        }
+
+        override fun extractFeatures(
+                lhs: Map<UUID, DelegatedStringSet>,
+                rhs: Map<UUID, DelegatedStringSet>
+        ): DoubleArray {
+            throw UnsupportedOperationException("Features are not extracted by this matcher.")
+        }
+
+        override fun extractProperties(entity: Map<UUID, Set<Any>>): Map<UUID, DelegatedStringSet> {
+            throw UnsupportedOperationException("Properties are not extracted by this matcher.")
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import org.junit.Assert
+import org.junit.Test
+import java.time.LocalDate
+import java.util.*
+
+class LinkingEntityTest {
+    private val givenName = UUID.randomUUID()
+    private val surname = UUID.randomUUID()
+    private val birthDate = UUID.randomUUID()
+    private val schema = LinkingSchema(listOf(givenName, surname, birthDate))
+
+    @Test
+    fun testMapSemantics() {
+        val properties = mapOf<UUID, Set<Any>>(
+                givenName to setOf("Mary", "Ann"),
+                birthDate to setOf(LocalDate.of(1985, 3, 1))
+        )
+        val entity = schema.entity(properties)
+        val expected = mapOf<UUID, Set<Any>>(
+                givenName to setOf("Mary", "Ann"),
+                birthDate to setOf("1985-03-01")
+        )
+
+        Assert.assertEquals(expected, entity)
+        Assert.assertEquals(entity, expected)
+        Assert.assertEquals(expected.hashCode(), entity.hashCode())
+        Assert.assertEquals(2, entity.size)
+        Assert.assertFalse(entity.containsKey(surname))
+        Assert.assertNull(entity[surname])
+        Assert.assertNull(entity[UUID.randomUUID()])
+        Assert.assertTrue(entity.getValue(givenName).contains("Ann"))
+        Assert.assertSame(entity, schema.entity(entity))
+    }
+
+    @Test
+    fun testViewsAreMaterializedOnce() {
+        val entity = schema.entity(mapOf(givenName to setOf<Any>("Mary"), surname to setOf<Any>("Smith")))
+
+        Assert.assertSame(entity[givenName], entity[givenName])
+        Assert.assertSame(entity.entries, entity.entries)
+        Assert.assertSame(entity[surname], entity.entries.first { it.key == surname }.value)
+    }
+
+    @Test
+    fun testValuesAreInterned() {
+        val lhs = schema.entity(mapOf(surname to setOf<Any>(StringBuilder("Smi").append("th").toString())))
+        val rhs = schema.entity(mapOf(surname to setOf<Any>(StringBuilder("Smit").append("h").toString())))
+
+        Assert.assertSame(lhs.getValues(surname)!![0], rhs.getValues(surname)!![0])
+    }
+
+    @Test
+    fun testPropertiesOutsideSchemaAreDropped() {
+        val entity = schema.entity(mapOf(UUID.randomUUID() to setOf<Any>("value"), surname to setOf<Any>()))
+        Assert.assertTrue(entity.isEmpty())
+    }
+}
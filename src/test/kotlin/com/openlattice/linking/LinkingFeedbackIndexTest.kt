@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.openlattice.data.EntityDataKey
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class LinkingFeedbackIndexTest {
+    private val entitySetId = UUID.randomUUID()
+    private val a = EntityDataKey(entitySetId, UUID.randomUUID())
+    private val b = EntityDataKey(entitySetId, UUID.randomUUID())
+    private val c = EntityDataKey(entitySetId, UUID.randomUUID())
+
+    @Test
+    fun testLoadedFeedback() {
+        val index = LinkingFeedbackIndex {
+            listOf(
+                    EntityLinkingFeedback(EntityKeyPair(a, b), true),
+                    EntityLinkingFeedback(EntityKeyPair(a, c), false)
+            )
+        }
+
+        Assert.assertTrue(index.isPositive(a, b))
+        Assert.assertTrue(index.isPositive(b, a))
+        Assert.assertFalse(index.isPositive(a, c))
+        Assert.assertTrue(index.isNegative(c, a.entitySetId, a.entityKeyId))
+        Assert.assertFalse(index.isNegative(b, c.entitySetId, c.entityKeyId))
+
+        Assert.assertTrue(index.hasFeedback(FeedbackType.Negative, a))
+        Assert.assertFalse(index.hasFeedback(FeedbackType.Negative, b))
+        Assert.assertTrue(index.hasFeedback(FeedbackType.Positive, b))
+    }
+
+    @Test
+    fun testIncrementalUpdates() {
+        val index = LinkingFeedbackIndex { listOf() }
+
+        index.add(listOf(EntityLinkingFeedback(EntityKeyPair(a, b), false)))
+        index.add(listOf(EntityLinkingFeedback(EntityKeyPair(a, c), false)))
+        Assert.assertTrue(index.isNegative(a, b.entitySetId, b.entityKeyId))
+
+        // changing feedback replaces it
+        index.add(listOf(EntityLinkingFeedback(EntityKeyPair(b, a), true)))
+        Assert.assertFalse(index.isNegative(a, b.entitySetId, b.entityKeyId))
+        Assert.assertTrue(index.isPositive(a, b))
+
+        // a keeps its negative feedback with c after the pair with b is removed
+        index.remove(EntityKeyPair(a, b))
+        Assert.assertFalse(index.isPositive(a, b))
+        Assert.assertFalse(index.hasFeedback(FeedbackType.Positive, a))
+        Assert.assertTrue(index.hasFeedback(FeedbackType.Negative, a))
+
+        index.remove(EntityKeyPair(c, a))
+        Assert.assertFalse(index.hasFeedback(FeedbackType.Negative, a))
+    }
+
+    @Test
+    fun testRefreshKeepsConcurrentUpdates() {
+        lateinit var index: LinkingFeedbackIndex
+        var loads = 0
+        index = LinkingFeedbackIndex {
+            if (loads++ > 0) {
+                // feedback submitted while feedback is being reloaded
+                index.add(listOf(EntityLinkingFeedback(EntityKeyPair(a, c), false)))
+            }
+            listOf(EntityLinkingFeedback(EntityKeyPair(a, b), true))
+        }
+
+        index.refresh()
+        Assert.assertTrue(index.isPositive(a, b))
+        Assert.assertTrue(index.isNegative(a, c.entitySetId, c.entityKeyId))
+    }
+}
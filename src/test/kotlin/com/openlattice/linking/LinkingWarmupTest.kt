@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.conductor.rpc.SearchConfiguration
+import com.openlattice.linking.matching.PrefilterCascade
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+class LinkingWarmupTest {
+    @Test
+    fun testStability() {
+        Assert.assertFalse(isStable(List(19) { 100L }, 10, 0.1))
+        Assert.assertTrue(isStable(List(20) { 100L }, 10, 0.1))
+
+        // a cold start followed by rounds that keep getting faster
+        val cooling = List(10) { 1_000L } + List(10) { 500L }
+        Assert.assertFalse(isStable(cooling, 10, 0.1))
+        Assert.assertTrue(isStable(cooling + List(10) { 480L }, 10, 0.1))
+    }
+
+    @Test
+    fun testReadiness() {
+        val warmup = LinkingWarmup(
+                Mockito.mock(Matcher::class.java),
+                PrefilterCascade(listOf(), MetricRegistry()),
+                mapOf(),
+                configuration(false),
+                MetricRegistry()
+        )
+        Assert.assertFalse(warmup.execute().isHealthy)
+
+        warmup.run()
+        warmup.awaitReady()
+        Assert.assertTrue(warmup.execute().isHealthy)
+    }
+
+    @Test
+    fun testFailedWarmupIsReady() {
+        // an unstubbed matcher returns no initialized block, which fails the first round
+        val warmup = LinkingWarmup(
+                Mockito.mock(Matcher::class.java),
+                PrefilterCascade(listOf(), MetricRegistry()),
+                mapOf(),
+                configuration(true),
+                MetricRegistry()
+        )
+
+        warmup.run()
+        Assert.assertTrue(warmup.isReady())
+    }
+
+    private fun configuration(warmupEnabled: Boolean): LinkingConfiguration {
+        return LinkingConfiguration(
+                SearchConfiguration("localhost", "cluster", 9300, Optional.empty(), Optional.empty()),
+                whitelist = Optional.empty(),
+                warmupEnabled = warmupEnabled
+        )
+    }
+}
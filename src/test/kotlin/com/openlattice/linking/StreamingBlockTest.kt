@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.openlattice.data.EntityDataKey
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+import kotlin.concurrent.thread
+
+class StreamingBlockTest {
+    private val entitySetId = UUID.randomUUID()
+    private val otherEntitySetId = UUID.randomUUID()
+    private val name = UUID.randomUUID()
+
+    @Test
+    fun testBatchesArriveAsLoadedAndBlockKeepsRankOrder() {
+        val candidate = EntityDataKey(entitySetId, UUID.randomUUID())
+        val first = (1..10).map { EntityDataKey(entitySetId, UUID.randomUUID()) }
+        val second = (1..10).map { EntityDataKey(otherEntitySetId, UUID.randomUUID()) }
+        val ranked = listOf(candidate) + first + second
+        val block = StreamingBlock(candidate, entity(candidate), ranked, 2, 2)
+
+        val producers = listOf(first, second).map { keys ->
+            thread {
+                (listOf(candidate) + keys).reversed().map { it to entity(it) }.chunked(3).all(block::publish)
+                block.complete()
+            }
+        }
+
+        val batches = block.use { it.toList() }
+        producers.forEach { it.join() }
+
+        Assert.assertEquals(listOf(candidate), batches.first().map { it.first })
+        Assert.assertEquals(ranked.size, batches.sumBy { it.size })
+        Assert.assertEquals(ranked, block.toBlock().second.keys.toList())
+        Assert.assertEquals(entity(first[3]), block.toBlock().second[first[3]])
+    }
+
+    @Test
+    fun testClosingReleasesProducers() {
+        val candidate = EntityDataKey(entitySetId, UUID.randomUUID())
+        val keys = (1..100).map { EntityDataKey(entitySetId, UUID.randomUUID()) }
+        val block = StreamingBlock(candidate, entity(candidate), keys, 1, 1)
+        var published = true
+
+        val producer = thread {
+            published = keys.map { it to entity(it) }.chunked(1).all(block::publish)
+            block.complete()
+        }
+        block.iterator().next()
+        block.close()
+        producer.join(10_000)
+
+        Assert.assertFalse(producer.isAlive)
+        Assert.assertFalse(published)
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun testFailuresReachConsumer() {
+        val candidate = EntityDataKey(entitySetId, UUID.randomUUID())
+        val block = StreamingBlock(candidate, entity(candidate), listOf(candidate), 1, 1)
+        block.fail(IllegalArgumentException("Unable to load"))
+        block.use { it.toList() }
+    }
+
+    private fun entity(dataKey: EntityDataKey): Map<UUID, Set<Any>> {
+        return mapOf(name to setOf<Any>(dataKey.entityKeyId.toString()))
+    }
+}
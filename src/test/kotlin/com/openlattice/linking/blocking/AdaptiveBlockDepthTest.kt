@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.blocking
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.conductor.rpc.SearchConfiguration
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.LinkingConfiguration
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class AdaptiveBlockDepthTest {
+    private val shallow = UUID.randomUUID()
+    private val deep = UUID.randomUUID()
+    private val overridden = UUID.randomUUID()
+
+    @Test
+    fun testLearnedDepth() {
+        val blockDepth = AdaptiveBlockDepth(configuration(true), MetricRegistry())
+        Assert.assertEquals(50, blockDepth.getSearchDepth(50))
+        Assert.assertEquals(50, blockDepth.getDepth(shallow, 50))
+
+        (1..100).forEach { _ ->
+            val candidate = EntityDataKey(shallow, UUID.randomUUID())
+            val shallowBlock = (1..50).map { EntityDataKey(shallow, UUID.randomUUID()) }
+            val deepBlock = (1..50).map { EntityDataKey(deep, UUID.randomUUID()) }
+            blockDepth.record(
+                    candidate,
+                    listOf(candidate) + shallowBlock + deepBlock,
+                    setOf(candidate, shallowBlock[1], deepBlock[39])
+            )
+        }
+
+        // matches at rank 1 shrink the depth to the minimum, matches at rank 39 keep it at the maximum
+        Assert.assertEquals(10, blockDepth.getDepth(shallow, 50))
+        Assert.assertEquals(50, blockDepth.getDepth(deep, 50))
+        Assert.assertEquals(5, blockDepth.getDepth(overridden, 50))
+    }
+
+    @Test
+    fun testTruncationKeepsCandidate() {
+        val blockDepth = AdaptiveBlockDepth(configuration(false), MetricRegistry())
+        val entityKeyIds = (1..20).map { UUID.randomUUID() }.toCollection(LinkedHashSet())
+        val candidate = EntityDataKey(overridden, entityKeyIds.last())
+
+        val truncated = blockDepth.truncate(
+                candidate,
+                mapOf(overridden to entityKeyIds, deep to entityKeyIds),
+                12
+        )
+
+        Assert.assertEquals(entityKeyIds.take(5).toSet() + candidate.entityKeyId, truncated[overridden])
+        Assert.assertEquals(entityKeyIds.take(12).toSet(), truncated[deep])
+        Assert.assertEquals(12, blockDepth.getSearchDepth(12))
+    }
+
+    private fun configuration(adaptive: Boolean): LinkingConfiguration {
+        return LinkingConfiguration(
+                SearchConfiguration("localhost", "cluster", 9300, Optional.empty(), Optional.empty()),
+                whitelist = Optional.empty(),
+                adaptiveBlockDepth = adaptive,
+                blockDepthOverrides = mapOf(overridden to 5)
+        )
+    }
+}
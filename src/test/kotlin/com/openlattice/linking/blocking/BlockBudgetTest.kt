@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.blocking
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.conductor.rpc.SearchConfiguration
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.LinkingConfiguration
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class BlockBudgetTest {
+    private val first = UUID.randomUUID()
+    private val second = UUID.randomUUID()
+    private val name = UUID.randomUUID()
+
+    @Test
+    fun testTruncationKeepsHighestRanks() {
+        val budget = BlockBudget(configuration(7, Long.MAX_VALUE, OversizedClusterPolicy.TRUNCATE), MetricRegistry())
+        val firstIds = (1..10).map { UUID.randomUUID() }.toCollection(LinkedHashSet())
+        val secondIds = (1..10).map { UUID.randomUUID() }.toCollection(LinkedHashSet())
+        val candidate = EntityDataKey(first, firstIds.elementAt(8))
+
+        val truncated = budget.truncate(candidate, mapOf(first to firstIds, second to secondIds))
+
+        Assert.assertEquals(listOf(0, 1, 2, 8).map(firstIds::elementAt), truncated.getValue(first).toList())
+        Assert.assertEquals(secondIds.take(3), truncated.getValue(second).toList())
+
+        val withinBudget = firstIds.take(7).toSet()
+        Assert.assertSame(withinBudget, budget.truncate(candidate, mapOf(first to withinBudget))[first])
+    }
+
+    @Test
+    fun testByteBudget() {
+        val budget = BlockBudget(configuration(1000, 20_000, OversizedClusterPolicy.TRUNCATE), MetricRegistry())
+        val entityKeyIds = (1..100).map { UUID.randomUUID() }.toCollection(LinkedHashSet())
+        val candidate = EntityDataKey(first, entityKeyIds.first())
+
+        // unknown entity sets are estimated at a kilobyte per entity
+        Assert.assertEquals(19, budget.truncate(candidate, mapOf(first to entityKeyIds)).getValue(first).size)
+
+        val load = budget.startLoading()
+        val entity = mapOf<UUID, Set<Any>>(name to setOf("x".repeat(4000)))
+        (1..2).forEach { _ -> load.add(first, entity) }
+        Assert.assertFalse(load.isExceeded())
+        (1..10).forEach { _ -> load.add(first, entity) }
+        Assert.assertTrue(load.isExceeded())
+        Assert.assertTrue(budget.truncate(candidate, mapOf(first to entityKeyIds)).getValue(first).size < 19)
+    }
+
+    @Test
+    fun testOversizedClusterPolicies() {
+        val members = (1..10).map { EntityDataKey(first, UUID.randomUUID()) }
+        val cluster = members.associateWith { lhs -> members.associateWith { rhs -> if (lhs == rhs) 1.0 else 0.9 } }
+        val initialScores = members.withIndex().associate { it.value to it.index.toDouble() }
+
+        val truncated = BlockBudget(configuration(5, Long.MAX_VALUE, OversizedClusterPolicy.TRUNCATE), MetricRegistry())
+                .limitCluster(cluster, initialScores)!!
+        Assert.assertEquals(members.takeLast(4).toSet(), truncated.keys)
+        Assert.assertTrue(truncated.values.all { it.keys == truncated.keys })
+
+        Assert.assertNull(
+                BlockBudget(configuration(5, Long.MAX_VALUE, OversizedClusterPolicy.SKIP), MetricRegistry())
+                        .limitCluster(cluster, initialScores)
+        )
+        Assert.assertSame(
+                cluster,
+                BlockBudget(configuration(5, Long.MAX_VALUE, OversizedClusterPolicy.SCORE_ALL), MetricRegistry())
+                        .limitCluster(cluster, initialScores)
+        )
+    }
+
+    @Test
+    fun testTruncatedClusterKeepsCentralMembers() {
+        val members = (1..10).map { EntityDataKey(first, UUID.randomUUID()) }
+        val central = members.take(3).toSet()
+        val cluster = members.associateWith { lhs ->
+            members.associateWith { rhs -> if (central.contains(lhs) && central.contains(rhs)) 0.95 else 0.6 }
+        }
+        val initialScores = mapOf(members.last() to 0.9)
+
+        val truncated = BlockBudget(configuration(5, Long.MAX_VALUE, OversizedClusterPolicy.TRUNCATE), MetricRegistry())
+                .limitCluster(cluster, initialScores)!!
+        Assert.assertEquals(central + members.last(), truncated.keys)
+    }
+
+    private fun configuration(blockSize: Int, blockBytes: Long, policy: OversizedClusterPolicy): LinkingConfiguration {
+        return LinkingConfiguration(
+                SearchConfiguration("localhost", "cluster", 9300, Optional.empty(), Optional.empty()),
+                blockSize = blockSize,
+                whitelist = Optional.empty(),
+                blockBytes = blockBytes,
+                oversizedClusterPolicy = policy
+        )
+    }
+}
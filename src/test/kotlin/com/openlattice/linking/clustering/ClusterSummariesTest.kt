@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.clustering
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.conductor.rpc.SearchConfiguration
+import com.openlattice.data.EntityDataKey
+import com.openlattice.linking.LinkingConfiguration
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class ClusterSummariesTest {
+    private val entitySetId = UUID.randomUUID()
+    private val linkingId = UUID.randomUUID()
+    private val summaries = ClusterSummaries(
+            LinkingConfiguration(
+                    SearchConfiguration("localhost", "cluster", 9300, Optional.empty(), Optional.empty()),
+                    whitelist = Optional.empty(),
+                    exactClusterSize = 5,
+                    clusterRepresentatives = 3
+            ),
+            MetricRegistry()
+    )
+
+    @Test
+    fun testSmallClustersAreScoredExactly() {
+        val cluster = cluster(5)
+        Assert.assertSame(cluster, summaries.summarize(linkingId, cluster))
+    }
+
+    @Test
+    fun testLargeClustersAreScoredThroughMedoids() {
+        val members = (0 until 10).map { EntityDataKey(entitySetId, UUID.randomUUID()) }
+        // the score of a pair is the centrality of its weaker member, so the last members are the medoids
+        val cluster = members.withIndex().associate { (i, lhs) ->
+            lhs to members.withIndex().associate { (j, rhs) -> rhs to 0.5 + Math.min(i, j) / 20.0 }
+        }
+
+        val summarized = summaries.summarize(linkingId, cluster)
+        Assert.assertEquals(members.takeLast(3).toSet(), summarized.keys)
+        Assert.assertTrue(summarized.values.all { it.keys == summarized.keys })
+
+        // a member that joins and scores better against the representatives replaces the weakest one
+        val candidate = EntityDataKey(entitySetId, UUID.randomUUID())
+        summaries.recordMember(linkingId, candidate, mapOf(candidate to summarized.keys.associateWith { 0.99 }))
+        val joined = cluster + (candidate to (members + candidate).associateWith { 0.99 })
+        Assert.assertEquals(setOf(members[8], members[9], candidate), summaries.summarize(linkingId, joined).keys)
+
+        // members that joined elsewhere are only observed through the stored scores, which causes a rebuild
+        val rebuilt = summaries.summarize(linkingId, cluster(12))
+        Assert.assertEquals(3, rebuilt.size)
+        Assert.assertFalse(rebuilt.keys.contains(candidate))
+    }
+
+    private fun cluster(size: Int): Map<EntityDataKey, Map<EntityDataKey, Double>> {
+        val members = (1..size).map { EntityDataKey(entitySetId, UUID.randomUUID()) }
+        return members.associateWith { members.associateWith { 0.95 } }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.loadtest
+
+import com.openlattice.linking.matching.MatchingModels
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class InMemoryLinkingTest {
+    @Test
+    fun testSyntheticPeople() {
+        val fqnToIdMap = listOf(GIVEN_NAME_FQN, MIDDLE_NAME_FQN, SURNAME_FQN, BIRTH_DATE_FQN, SEX_FQN)
+                .associate { it to UUID.randomUUID() }
+        val people = SyntheticPeople(fqnToIdMap, listOf(UUID.randomUUID()), 0.5, 0.0).generate(1_000)
+
+        val duplicates = people.groupBy { it.identity }.values.filter { it.size > 1 }
+        Assert.assertTrue(people.map { it.identity }.distinct().size in 400..600)
+        // without typos every duplicate is an exact copy of the person it duplicates
+        duplicates.forEach { records -> Assert.assertEquals(1, records.map { it.properties }.distinct().size) }
+    }
+
+    @Test
+    fun testLinksEveryEntity() {
+        val configuration = LinkingLoadTest.configuration().copy(warmupEnabled = false)
+        val report = LinkingLoadTest.run(MatchingModels.loadKerasModel(), 500, configuration)
+
+        Assert.assertEquals(500, report.entities)
+        Assert.assertEquals(0, report.failures)
+        Assert.assertEquals(0, report.unlinked)
+        Assert.assertTrue(report.clusters in 1..500)
+        Assert.assertTrue(report.getLinksPerSecond() > 0.0)
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.loadtest
+
+import com.google.common.util.concurrent.Striped
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.EntityKeyIdService
+import com.openlattice.linking.*
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.mockito.AdditionalAnswers
+import org.mockito.Mockito
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.stream.Stream
+
+/*
+ * In-memory stand-ins for the services linking depends on, so that linking can be load tested without Hazelcast,
+ * Postgres, Elasticsearch or the id service.
+ */
+
+private const val CLUSTER_LOCK_STRIPES = 1024
+
+/**
+ * Serves entities from memory and blocks them on the prefixes of their names and their birth year.
+ */
+class InMemoryEntities(fqnToIdMap: Map<FullQualifiedName, UUID>) : DataLoader, Blocker {
+    private val schema = LinkingSchema(fqnToIdMap.values)
+    private val givenName = fqnToIdMap.getValue(GIVEN_NAME_FQN)
+    private val surname = fqnToIdMap.getValue(SURNAME_FQN)
+    private val birthDate = fqnToIdMap.getValue(BIRTH_DATE_FQN)
+
+    private val entities = ConcurrentHashMap<EntityDataKey, LinkingEntity>()
+    private val index = ConcurrentHashMap<String, MutableList<EntityDataKey>>()
+
+    fun add(dataKey: EntityDataKey, properties: Map<UUID, Set<Any>>) {
+        val entity = schema.entity(properties)
+        entities[dataKey] = entity
+        blockingKeys(entity).forEach { key ->
+            index.computeIfAbsent(key) { Collections.synchronizedList(mutableListOf()) }.add(dataKey)
+        }
+    }
+
+    override fun getEntity(dataKey: EntityDataKey): LinkingEntity {
+        return entities.getValue(dataKey)
+    }
+
+    override fun getEntities(dataKeys: Set<EntityDataKey>): Map<EntityDataKey, LinkingEntity> {
+        return dataKeys.mapNotNull { dataKey -> entities[dataKey]?.let { dataKey to it } }.toMap()
+    }
+
+    override fun getEntityStream(entitySetId: UUID, entityKeyIds: Set<UUID>): Stream<Pair<UUID, LinkingEntity>> {
+        return entityKeyIds.stream()
+                .map { entityKeyId -> entities[EntityDataKey(entitySetId, entityKeyId)]?.let { entityKeyId to it } }
+                .filter { it != null }
+                .map { it!! }
+    }
+
+    /**
+     * Blocks on the entities sharing a surname or given name prefix and birth year with the candidate, up to [top]
+     * entities per key.
+     */
+    override fun block(
+            entityDataKey: EntityDataKey,
+            entity: Optional<Map<UUID, Set<Any>>>,
+            top: Int
+    ): Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>> {
+        val candidate = entity.map { schema.entity(it) }.orElseGet { getEntity(entityDataKey) }
+        val blocked = blockingKeys(candidate)
+                .flatMap { key -> index[key]?.let { keys -> synchronized(keys) { keys.take(top) } } ?: listOf() }
+                .toSet()
+        return entityDataKey to (getEntities(blocked) + (entityDataKey to candidate))
+    }
+
+    private fun blockingKeys(entity: LinkingEntity): List<String> {
+        val year = entity.getValues(birthDate)?.firstOrNull()?.take(4) ?: ""
+        return listOfNotNull(
+                entity.getValues(surname)?.firstOrNull()?.let { "s:${it.take(3).toUpperCase()}:$year" },
+                entity.getValues(givenName)?.firstOrNull()?.let { "g:${it.take(3).toUpperCase()}:$year" }
+        )
+    }
+}
+
+/**
+ * Keeps linking ids and match scores in memory. Only the methods used by [EntityLinker] outside of positive feedback
+ * are implemented, with the same signatures as in [LinkingQueryService], which delegates to them.
+ */
+class InMemoryLinkingQueries {
+    private val linkingIds = ConcurrentHashMap<EntityDataKey, UUID>()
+    private val clusters = ConcurrentHashMap<UUID, Map<EntityDataKey, Map<EntityDataKey, Double>>>()
+    private val locks = Striped.lock(CLUSTER_LOCK_STRIPES)
+
+    fun getClustersForIds(dataKeys: Set<EntityDataKey>): Map<UUID, Map<EntityDataKey, Map<EntityDataKey, Double>>> {
+        return dataKeys
+                .mapNotNull { linkingIds[it] }
+                .distinct()
+                .mapNotNull { linkingId -> clusters[linkingId]?.let { linkingId to it } }
+                .toMap()
+    }
+
+    /**
+     * Locks the clusters of the data keys, retrying if any of the data keys moved to another cluster before the locks
+     * were acquired, and adds the scores returned by [doWork] to the cluster they were computed for.
+     */
+    fun lockClustersDoWorkAndCommit(
+            candidate: EntityDataKey,
+            dataKeys: Set<EntityDataKey>,
+            doWork: (Map<UUID, Map<EntityDataKey, Map<EntityDataKey, Double>>>) -> Triple<UUID, Map<EntityDataKey, Map<EntityDataKey, Double>>, Boolean>
+    ): Pair<UUID, Map<EntityDataKey, Map<EntityDataKey, Double>>> {
+        while (true) {
+            val clusterIds = getClusterIds(dataKeys)
+            val clusterLocks = locks.bulkGet(clusterIds)
+            clusterLocks.forEach { it.lock() }
+            try {
+                if (getClusterIds(dataKeys) != clusterIds) {
+                    continue
+                }
+                val (linkingId, scores, _) = doWork(getClustersForIds(dataKeys))
+                clusters.merge(linkingId, scores) { existing, added ->
+                    (existing.keys + added.keys).associateWith { src ->
+                        (existing[src] ?: mapOf()) + (added[src] ?: mapOf())
+                    }
+                }
+                return linkingId to scores
+            } finally {
+                clusterLocks.reversed().forEach { it.unlock() }
+            }
+        }
+    }
+
+    private fun getClusterIds(dataKeys: Set<EntityDataKey>): Set<UUID> {
+        return dataKeys.mapNotNull { linkingIds[it] }.toSet()
+    }
+
+    fun updateLinkingInformation(linkingId: UUID, newMember: EntityDataKey, cluster: Map<UUID, LinkedHashSet<UUID>>) {
+        linkingIds[newMember] = linkingId
+    }
+
+    fun deleteNeighborhood(entity: EntityDataKey, positiveFeedbacks: Set<EntityKeyPair>): Int {
+        val linkingId = linkingIds.remove(entity) ?: return 0
+        var removed = 0
+        clusters.computeIfPresent(linkingId) { _, cluster ->
+            removed = cluster[entity]?.size ?: 0
+            (cluster - entity).mapValues { it.value - entity }.takeIf { it.isNotEmpty() }
+        }
+        return removed
+    }
+
+    fun getLinkingId(dataKey: EntityDataKey): UUID? {
+        return linkingIds[dataKey]
+    }
+}
+
+/**
+ * Reserves linking ids without the id service.
+ */
+class InMemoryIds {
+    fun reserveLinkingIds(count: Int): List<UUID> {
+        return (1..count).map { UUID.randomUUID() }
+    }
+}
+
+fun linkingQueryService(queries: InMemoryLinkingQueries): LinkingQueryService {
+    return Mockito.mock(LinkingQueryService::class.java, AdditionalAnswers.delegatesTo<Any>(queries))
+}
+
+fun entityKeyIdService(ids: InMemoryIds): EntityKeyIdService {
+    return Mockito.mock(EntityKeyIdService::class.java, AdditionalAnswers.delegatesTo<Any>(ids))
+}
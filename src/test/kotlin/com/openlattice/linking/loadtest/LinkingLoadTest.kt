@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.loadtest
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.base.Stopwatch
+import com.openlattice.conductor.rpc.SearchConfiguration
+import com.openlattice.linking.*
+import com.openlattice.linking.blocking.BlockBudget
+import com.openlattice.linking.clustering.ClusterSummaries
+import com.openlattice.linking.matching.*
+import com.openlattice.linking.replay.BlockRecorder
+import com.openlattice.linking.replay.percentile
+import com.openlattice.linking.util.PersonProperties
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork
+import org.mockito.Mockito
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+private val DEFAULT_SIZES = listOf(10_000, 100_000, 1_000_000)
+private const val ENTITY_SETS = 8
+private const val DUPLICATE_RATE = 0.3
+private const val TYPO_RATE = 0.2
+
+/**
+ * Measures end to end links per second against in-memory stand-ins for the data loader, blocker, linking queries,
+ * feedback and id service. Synthetic people are loaded up front and then linked in random order on
+ * [LinkingConfiguration.parallelism] threads, after warming up linking.
+ */
+object LinkingLoadTest {
+    private val logger = LoggerFactory.getLogger(LinkingLoadTest::class.java)
+
+    /**
+     * @param args The numbers of entities to link, which default to 10k, 100k and 1M.
+     */
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val sizes = if (args.isEmpty()) DEFAULT_SIZES else args.map { it.toInt() }
+        val model = MatchingModels.loadKerasModel()
+        sizes.forEach { size ->
+            logger.info("Linked {} entities:\n{}", size, run(model, size, configuration()))
+        }
+    }
+
+    fun run(model: MultiLayerNetwork, size: Int, configuration: LinkingConfiguration): LoadTestReport {
+        val metricRegistry = MetricRegistry()
+        val fqnToIdMap = (PersonProperties.FQNS + listOf(GIVEN_NAME_FQN, MIDDLE_NAME_FQN, SURNAME_FQN, BIRTH_DATE_FQN, SEX_FQN))
+                .distinct()
+                .associate { it to UUID.randomUUID() }
+        val people = SyntheticPeople(
+                fqnToIdMap,
+                (1..ENTITY_SETS).map { UUID.randomUUID() },
+                DUPLICATE_RATE,
+                TYPO_RATE
+        ).generate(size)
+
+        val entities = InMemoryEntities(fqnToIdMap)
+        people.forEach { entities.add(it.dataKey, it.properties) }
+        val queries = InMemoryLinkingQueries()
+        val prefilters = PrefilterCascade.fromConfiguration(
+                configuration.prefilters,
+                configuration.birthDateBandDays,
+                fqnToIdMap,
+                metricRegistry
+        )
+        val matcher = SocratesMatcher(model, fqnToIdMap, LinkingFeedbackIndex { listOf() }, prefilters)
+        val linker = EntityLinker(
+                entities,
+                matcher,
+                entityKeyIdService(InMemoryIds()),
+                entities,
+                linkingQueryService(queries),
+                Mockito.mock(PostgresLinkingFeedbackService::class.java),
+                LinkingFeedbackIndex { listOf() },
+                BlockBudget(configuration, metricRegistry),
+                ClusterSummaries(configuration, metricRegistry),
+                NoOpLinkingJournal(),
+                BlockRecorder(configuration, fqnToIdMap, metricRegistry)
+        )
+        LinkingWarmup(matcher, prefilters, fqnToIdMap, configuration, metricRegistry).run()
+
+        val latencies = LongArray(size)
+        val failures = AtomicInteger()
+        val executor = Executors.newFixedThreadPool(configuration.parallelism)
+        val sw = Stopwatch.createStarted()
+        people.withIndex().shuffled(Random(0)).forEach { (index, person) ->
+            executor.execute {
+                val linkSw = Stopwatch.createStarted()
+                try {
+                    linker.link(person.dataKey)
+                } catch (ex: Exception) {
+                    failures.incrementAndGet()
+                    logger.error("Unable to link {}", person.dataKey, ex)
+                }
+                latencies[index] = linkSw.elapsed(TimeUnit.MICROSECONDS)
+            }
+        }
+        executor.shutdown()
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+        val elapsedMillis = sw.elapsed(TimeUnit.MILLISECONDS)
+
+        val linkingIds = people.map { queries.getLinkingId(it.dataKey) }
+        return LoadTestReport(
+                size,
+                elapsedMillis,
+                latencies,
+                failures.get(),
+                linkingIds.count { it == null },
+                people.map { it.identity }.distinct().size,
+                linkingIds.filterNotNull().distinct().size
+        )
+    }
+
+    fun configuration(): LinkingConfiguration {
+        return LinkingConfiguration(
+                SearchConfiguration("localhost", "cluster", 9300, Optional.empty(), Optional.empty()),
+                whitelist = Optional.empty()
+        )
+    }
+}
+
+/**
+ * The result of a load test, with latencies in microseconds.
+ *
+ * @param failures The number of links that threw.
+ * @param unlinked The number of entities without a linking id after all links completed.
+ * @param people The number of distinct people among the linked entities.
+ * @param clusters The number of clusters the entities were linked into.
+ */
+class LoadTestReport(
+        val entities: Int,
+        val elapsedMillis: Long,
+        latencies: LongArray,
+        val failures: Int,
+        val unlinked: Int,
+        val people: Int,
+        val clusters: Int
+) {
+    val latencies: LongArray = latencies.sortedArray()
+
+    fun getLinksPerSecond(): Double {
+        return entities * 1000.0 / Math.max(elapsedMillis, 1L)
+    }
+
+    override fun toString(): String {
+        return listOf(
+                "links per second: ${"%.1f".format(getLinksPerSecond())}",
+                "link latency us: p50=${percentile(latencies, 0.5)}, p99=${percentile(latencies, 0.99)}, " +
+                        "max=${percentile(latencies, 1.0)}",
+                "failures: $failures, unlinked: $unlinked",
+                "people: $people, clusters: $clusters"
+        ).joinToString("\n")
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.loadtest
+
+import com.openlattice.data.EntityDataKey
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import java.util.*
+
+val GIVEN_NAME_FQN = FullQualifiedName("nc.PersonGivenName")
+val MIDDLE_NAME_FQN = FullQualifiedName("nc.PersonMiddleName")
+val SURNAME_FQN = FullQualifiedName("nc.PersonSurName")
+val BIRTH_DATE_FQN = FullQualifiedName("nc.PersonBirthDate")
+val SEX_FQN = FullQualifiedName("nc.PersonSex")
+
+/**
+ * Generates people named after the employees in employees.csv, spread over entity sets the way people recur across
+ * datasets.
+ *
+ * @param duplicateRate The share of people that are another record of a person generated before.
+ * @param typoRate The share of duplicates with a typo in their given name or surname.
+ */
+class SyntheticPeople(
+        private val fqnToIdMap: Map<FullQualifiedName, UUID>,
+        private val entitySetIds: List<UUID>,
+        private val duplicateRate: Double,
+        private val typoRate: Double,
+        seed: Long = 0L
+) {
+    private val random = Random(seed)
+    private val names = loadNames()
+
+    /**
+     * @return The generated people and the index of the person each one is a record of.
+     */
+    fun generate(count: Int): List<SyntheticPerson> {
+        val people = ArrayList<SyntheticPerson>(count)
+        repeat(count) { index ->
+            val person = if (people.isNotEmpty() && random.nextDouble() < duplicateRate) {
+                val original = people[random.nextInt(people.size)]
+                SyntheticPerson(nextKey(), original.identity, duplicate(original.properties))
+            } else {
+                SyntheticPerson(nextKey(), index, person())
+            }
+            people.add(person)
+        }
+        return people
+    }
+
+    private fun nextKey(): EntityDataKey {
+        return EntityDataKey(entitySetIds[random.nextInt(entitySetIds.size)], UUID.randomUUID())
+    }
+
+    /**
+     * Names are listed as "SURNAME,  GIVEN MIDDLE".
+     */
+    private fun person(): Map<UUID, Set<Any>> {
+        val name = names[random.nextInt(names.size)]
+        val given = name.substringAfter(',').trim().split(' ')
+        val birthDate = "${1940 + random.nextInt(60)}-${pad(1 + random.nextInt(12))}-${pad(1 + random.nextInt(28))}"
+        return properties(
+                name.substringBefore(',').trim(),
+                given.first(),
+                given.drop(1).joinToString(" "),
+                birthDate,
+                if (random.nextBoolean()) "M" else "F"
+        )
+    }
+
+    private fun duplicate(original: Map<UUID, Set<Any>>): Map<UUID, Set<Any>> {
+        if (random.nextDouble() >= typoRate) {
+            return original
+        }
+        val propertyTypeId = fqnToIdMap.getValue(if (random.nextBoolean()) GIVEN_NAME_FQN else SURNAME_FQN)
+        val value = original[propertyTypeId]?.firstOrNull()?.toString() ?: return original
+        return original + (propertyTypeId to setOf<Any>(typo(value)))
+    }
+
+    /**
+     * Replaces, drops or swaps a single character.
+     */
+    private fun typo(value: String): String {
+        if (value.length < 2) {
+            return value
+        }
+        val chars = value.toMutableList()
+        val at = random.nextInt(chars.size - 1)
+        when (random.nextInt(3)) {
+            0 -> chars[at] = 'A' + random.nextInt(26)
+            1 -> chars.removeAt(at)
+            else -> {
+                val swapped = chars[at]
+                chars[at] = chars[at + 1]
+                chars[at + 1] = swapped
+            }
+        }
+        return chars.joinToString("")
+    }
+
+    private fun properties(
+            surname: String,
+            givenName: String,
+            middleName: String,
+            birthDate: String,
+            sex: String
+    ): Map<UUID, Set<Any>> {
+        return listOf(
+                SURNAME_FQN to surname,
+                GIVEN_NAME_FQN to givenName,
+                MIDDLE_NAME_FQN to middleName,
+                BIRTH_DATE_FQN to birthDate,
+                SEX_FQN to sex
+        )
+                .filter { it.second.isNotEmpty() }
+                .associate { (fqn, value) -> fqnToIdMap.getValue(fqn) to setOf<Any>(value) }
+    }
+
+    private fun pad(value: Int): String {
+        return value.toString().padStart(2, '0')
+    }
+
+    private fun loadNames(): List<String> {
+        return Thread.currentThread().contextClassLoader.getResourceAsStream("employees.csv")!!
+                .bufferedReader()
+                .use { reader ->
+                    reader.readLines()
+                            .map { it.substringAfter('"').substringBefore('"') }
+                            .filter { it.contains(',') }
+                }
+    }
+}
+
+/**
+ * A generated record of a person.
+ *
+ * @param identity The index of the person this is a record of, which is shared by all duplicates.
+ */
+data class SyntheticPerson(
+        val dataKey: EntityDataKey,
+        val identity: Int,
+        val properties: Map<UUID, Set<Any>>
+)
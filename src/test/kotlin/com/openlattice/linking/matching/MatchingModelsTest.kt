@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.matching
+
+import org.deeplearning4j.util.ModelSerializer
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.nd4j.linalg.io.ClassPathResource
+import java.util.*
+
+class MatchingModelsTest {
+    @Rule
+    @JvmField
+    val folder = TemporaryFolder()
+
+    private val random = Random(0)
+
+    @Test
+    fun testConvertedModelScoresLikeKerasModel() {
+        val artifact = folder.newFolder().resolve(MODEL_ARTIFACT)
+        MatchingModels.main(arrayOf(ClassPathResource(KERAS_MODEL).file.path, artifact.path))
+
+        val model = MatchingModels.loadKerasModel()
+        val converted = ModelSerializer.restoreMultiLayerNetwork(artifact, false)
+        val features = features(model.layerInputSize(0).toInt())
+
+        Assert.assertArrayEquals(model.getModelScore(features), converted.getModelScore(features), 1e-9)
+    }
+
+    @Test
+    fun testCopiesShareParameters() {
+        val model = MatchingModels.loadKerasModel()
+        val copies = (1..4).map { MatchingModels.shareParameters(model) }
+        val features = features(model.layerInputSize(0).toInt())
+        val expected = model.getModelScore(features)
+
+        copies.parallelStream().forEach { copy ->
+            Assert.assertSame(model.params().data(), copy.params().data())
+            Assert.assertArrayEquals(expected, copy.getModelScore(features), 1e-9)
+        }
+    }
+
+    private fun features(width: Int): Array<DoubleArray> {
+        return (1..16).map { DoubleArray(width) { random.nextDouble() * 100.0 } }.toTypedArray()
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.matching
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.data.EntityDataKey
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class PrefilterCascadeTest {
+    private val sex = UUID.randomUUID()
+    private val birthDate = UUID.randomUUID()
+    private val givenName = UUID.randomUUID()
+    private val surname = UUID.randomUUID()
+    private val fqnToIdMap = mapOf(
+            FullQualifiedName("nc.PersonSex") to sex,
+            FullQualifiedName("nc.PersonBirthDate") to birthDate,
+            FullQualifiedName("nc.PersonGivenName") to givenName,
+            FullQualifiedName("nc.PersonSurName") to surname
+    )
+    private val entitySetId = UUID.randomUUID()
+
+    @Test
+    fun testCascade() {
+        val metricRegistry = MetricRegistry()
+        val cascade = PrefilterCascade.fromConfiguration(
+                listOf(SEX_PREFILTER, BIRTH_DATE_PREFILTER, NAME_PREFILTER),
+                730L,
+                fqnToIdMap,
+                metricRegistry
+        )
+
+        val candidate = key()
+        val sameSurname = key()
+        val swappedNames = key()
+        val missingProperties = key()
+        val otherSex = key()
+        val otherDecade = key()
+        val otherName = key()
+        val block = mapOf(
+                candidate to person("F", "1985-03-01", "Mary Ann", "Smith"),
+                sameSurname to person("female", "1986-02-01", "Marie", "smith"),
+                swappedNames to person("F", "1985-03-01", "Smith", "Mary"),
+                missingProperties to mapOf(givenName to setOf<Any>("Jane")),
+                otherSex to person("M", "1985-03-01", "Mary", "Smith"),
+                otherDecade to person("F", "1995-03-01", "Mary", "Smith"),
+                otherName to person("F", "1985-03-01", "Jane", "Doe")
+        )
+
+        val survivors = cascade.filter(candidate, block).keys
+        Assert.assertEquals(setOf(candidate, sameSurname, swappedNames, missingProperties), survivors)
+
+        Assert.assertEquals(6L, metricRegistry.counter(metric(SEX_PREFILTER, "evaluated")).count)
+        Assert.assertEquals(1L, metricRegistry.counter(metric(SEX_PREFILTER, "rejected")).count)
+        Assert.assertEquals(1L, metricRegistry.counter(metric(BIRTH_DATE_PREFILTER, "rejected")).count)
+        Assert.assertEquals(4L, metricRegistry.counter(metric(NAME_PREFILTER, "evaluated")).count)
+        Assert.assertEquals(1L, metricRegistry.counter(metric(NAME_PREFILTER, "rejected")).count)
+    }
+
+    @Test
+    fun testFiltersWithoutPropertiesAreSkipped() {
+        val cascade = PrefilterCascade.fromConfiguration(
+                listOf(SEX_PREFILTER, BIRTH_DATE_PREFILTER),
+                730L,
+                mapOf(FullQualifiedName("nc.PersonSex") to sex),
+                MetricRegistry()
+        )
+        val candidate = key()
+        val block = mapOf(
+                candidate to person("F", "1985-03-01", "Mary", "Smith"),
+                key() to person("F", "1995-03-01", "Mary", "Smith")
+        )
+
+        Assert.assertEquals(2, cascade.filter(candidate, block).size)
+    }
+
+    private fun key(): EntityDataKey {
+        return EntityDataKey(entitySetId, UUID.randomUUID())
+    }
+
+    private fun person(sex: String, birthDate: String, givenName: String, surname: String): Map<UUID, Set<Any>> {
+        return mapOf(
+                this.sex to setOf<Any>(sex),
+                this.birthDate to setOf<Any>(birthDate),
+                this.givenName to setOf<Any>(givenName),
+                this.surname to setOf<Any>(surname)
+        )
+    }
+
+    private fun metric(stage: String, metric: String): String {
+        return MetricRegistry.name(PrefilterCascade::class.java, stage, metric)
+    }
+}
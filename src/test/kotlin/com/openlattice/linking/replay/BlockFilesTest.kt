@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.replay
+
+import com.openlattice.data.EntityDataKey
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.*
+
+class BlockFilesTest {
+    private val givenName = UUID.randomUUID()
+    private val birthDate = UUID.randomUUID()
+    private val fqnToIdMap = mapOf(
+            FullQualifiedName("nc.PersonGivenName") to givenName,
+            FullQualifiedName("nc.PersonBirthDate") to birthDate
+    )
+
+    @Test
+    fun testRoundTrip() {
+        val blocks = (1..3).map { block() }
+        val output = ByteArrayOutputStream()
+        BlockWriter(output, fqnToIdMap).use { writer -> blocks.forEach(writer::write) }
+
+        BlockReader(ByteArrayInputStream(output.toByteArray())).use { reader ->
+            Assert.assertEquals(fqnToIdMap, reader.fqnToIdMap)
+            Assert.assertEquals(blocks, reader.asSequence().toList())
+        }
+    }
+
+    @Test
+    fun testUnclosedFileEndsAtLastBlock() {
+        val block = block()
+        val output = ByteArrayOutputStream()
+        val writer = BlockWriter(output, fqnToIdMap)
+        writer.write(block)
+        writer.flush()
+
+        BlockReader(ByteArrayInputStream(output.toByteArray())).use { reader ->
+            Assert.assertEquals(listOf(block), reader.asSequence().toList())
+        }
+    }
+
+    @Test
+    fun testHashingKeepsShape() {
+        val hasher = ValueHasher("salt".toByteArray())
+        val hashed = hasher.hash("Jane-1980-01-31")
+
+        Assert.assertNotEquals("Jane-1980-01-31", hashed)
+        Assert.assertEquals(hashed, hasher.hash("Jane-1980-01-31"))
+        Assert.assertTrue(Regex("[A-Z][a-z]{3}-\\d{4}-\\d{2}-\\d{2}").matches(hashed))
+        Assert.assertNotEquals(hashed, ValueHasher("pepper".toByteArray()).hash("Jane-1980-01-31"))
+    }
+
+    @Test
+    fun testPercentiles() {
+        val latencies = (1L..100L).toList().toLongArray()
+        Assert.assertEquals(50L, percentile(latencies, 0.5))
+        Assert.assertEquals(99L, percentile(latencies, 0.99))
+        Assert.assertEquals(100L, percentile(latencies, 1.0))
+        Assert.assertEquals(0L, percentile(longArrayOf(), 0.5))
+    }
+
+    private fun block(): Pair<EntityDataKey, Map<EntityDataKey, Map<UUID, Set<Any>>>> {
+        val entitySetIds = listOf(UUID.randomUUID(), UUID.randomUUID())
+        val entities = (0 until 10).associate { i ->
+            EntityDataKey(entitySetIds[i % 2], UUID.randomUUID()) to mapOf(
+                    givenName to setOf<Any>("Name $i", "Alias $i"),
+                    birthDate to setOf<Any>("1980-01-${10 + i}")
+            )
+        }
+        return entities.keys.first() to entities
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.scheduling
+
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+private const val PARTITIONS = 271
+
+class LinkerPartitionsTest {
+    @Test
+    fun testPartitionsAreBalanced() {
+        val nodes = (1..4).map { UUID.randomUUID() }
+        val counts = (0 until PARTITIONS).groupingBy { assignPartition(it, nodes) }.eachCount()
+
+        Assert.assertEquals(nodes.toSet(), counts.keys)
+        counts.values.forEach { Assert.assertTrue("Unbalanced assignment $counts", it in 40..100) }
+    }
+
+    @Test
+    fun testOnlyPartitionsOfChangedNodesMove() {
+        val nodes = (1..4).map { UUID.randomUUID() }
+        val joined = UUID.randomUUID()
+        val before = (0 until PARTITIONS).map { assignPartition(it, nodes) }
+        val after = (0 until PARTITIONS).map { assignPartition(it, nodes + joined) }
+
+        before.zip(after).forEach { (owner, newOwner) -> Assert.assertTrue(newOwner == owner || newOwner == joined) }
+        Assert.assertTrue(after.count { it == joined } > 0)
+
+        // assignment does not depend on the order in which nodes are listed
+        Assert.assertEquals(after, (0 until PARTITIONS).map { assignPartition(it, (nodes + joined).reversed()) })
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking.scheduling
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.data.EntityDataKey
+import org.junit.Assert
+import org.junit.Test
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+import java.util.*
+
+class WeightedFairSchedulerTest {
+    private val noisy = UUID.randomUUID()
+    private val small = UUID.randomUUID()
+
+    @Test
+    fun testWeightedDispatch() {
+        val scheduler = WeightedFairScheduler(
+                { if (it == noisy) 1.0 else 4.0 },
+                Long.MAX_VALUE,
+                MetricRegistry()
+        )
+
+        scheduler.offerAll((1..100).map { EntityDataKey(noisy, UUID.randomUUID()) })
+        scheduler.offerAll((1..100).map { EntityDataKey(small, UUID.randomUUID()) })
+
+        val dispatched = (1..40).map { scheduler.take().entitySetId }
+        Assert.assertEquals(32, dispatched.count { it == small })
+        Assert.assertEquals(8, dispatched.count { it == noisy })
+        Assert.assertEquals(160, scheduler.size())
+    }
+
+    @Test
+    fun testIdleQueueDoesNotAccumulateCredit() {
+        val scheduler = WeightedFairScheduler({ 1.0 }, Long.MAX_VALUE, MetricRegistry())
+
+        scheduler.offerAll((1..50).map { EntityDataKey(noisy, UUID.randomUUID()) })
+        (1..40).forEach { _ -> scheduler.take() }
+
+        scheduler.offerAll((1..50).map { EntityDataKey(small, UUID.randomUUID()) })
+        val dispatched = (1..20).map { scheduler.take().entitySetId }
+        Assert.assertEquals(10, dispatched.count { it == small })
+    }
+
+    @Test
+    fun testAgeBoost() {
+        val clock = MutableClock()
+        val scheduler = WeightedFairScheduler({ if (it == noisy) 100.0 else 1.0 }, 1_000, MetricRegistry(), clock)
+
+        val aged = EntityDataKey(small, UUID.randomUUID())
+        scheduler.offer(EntityDataKey(small, UUID.randomUUID()))
+        scheduler.offer(aged)
+        scheduler.offerAll((1..50).map { EntityDataKey(noisy, UUID.randomUUID()) })
+        Assert.assertEquals(small, scheduler.take().entitySetId)
+
+        clock.now += 1_000
+        Assert.assertEquals(aged, scheduler.take())
+    }
+
+    @Test
+    fun testCoalescing() {
+        val clock = MutableClock()
+        val scheduler = WeightedFairScheduler({ 1.0 }, Long.MAX_VALUE, MetricRegistry(), clock, 100)
+
+        val candidate = EntityDataKey(small, UUID.randomUUID())
+        Assert.assertTrue(scheduler.offer(candidate))
+        Assert.assertFalse(scheduler.offer(candidate))
+        Assert.assertTrue(scheduler.requestRelink(candidate))
+        Assert.assertEquals(1, scheduler.size())
+
+        clock.now += 100
+        Assert.assertEquals(candidate, scheduler.take())
+        Assert.assertTrue(scheduler.isPending(candidate))
+        Assert.assertFalse(scheduler.offer(candidate))
+        Assert.assertEquals(0, scheduler.size())
+
+        Assert.assertTrue(scheduler.requestRelink(candidate))
+        Assert.assertTrue(scheduler.requestRelink(candidate))
+        Assert.assertTrue(scheduler.complete(candidate))
+        Assert.assertEquals(1, scheduler.size())
+
+        clock.now += 100
+        Assert.assertEquals(candidate, scheduler.take())
+        Assert.assertFalse(scheduler.complete(candidate))
+        Assert.assertFalse(scheduler.isPending(candidate))
+        Assert.assertFalse(scheduler.requestRelink(candidate))
+    }
+
+    @Test
+    fun testCoalescingWindowExtends() {
+        val clock = MutableClock()
+        val scheduler = WeightedFairScheduler({ 1.0 }, 250, MetricRegistry(), clock, 100)
+
+        val candidate = EntityDataKey(small, UUID.randomUUID())
+        val other = EntityDataKey(small, UUID.randomUUID())
+        scheduler.offer(candidate)
+        scheduler.offer(other)
+
+        clock.now += 50
+        Assert.assertTrue(scheduler.requestRelink(candidate))
+        clock.now += 50
+        Assert.assertEquals(other, scheduler.take())
+
+        clock.now += 50
+        Assert.assertTrue(scheduler.requestRelink(candidate))
+
+        //Extending the window again would hold the candidate back for longer than the maximum wait.
+        clock.now += 100
+        Assert.assertTrue(scheduler.requestRelink(candidate))
+        Assert.assertEquals(candidate, scheduler.take())
+    }
+
+    @Test
+    fun testClaim() {
+        val scheduler = WeightedFairScheduler({ 1.0 }, Long.MAX_VALUE, MetricRegistry())
+        val queued = EntityDataKey(small, UUID.randomUUID())
+        val candidate = EntityDataKey(small, UUID.randomUUID())
+        scheduler.offer(queued)
+
+        Assert.assertFalse(scheduler.claim(queued))
+        Assert.assertTrue(scheduler.claim(candidate))
+        Assert.assertFalse(scheduler.claim(candidate))
+        Assert.assertTrue(scheduler.isInFlight(candidate))
+        Assert.assertFalse(scheduler.offer(candidate))
+
+        Assert.assertTrue(scheduler.requestRelink(candidate))
+        Assert.assertTrue(scheduler.complete(candidate))
+        Assert.assertFalse(scheduler.isInFlight(candidate))
+        Assert.assertEquals(2, scheduler.size())
+    }
+
+    @Test
+    fun testRemoveIf() {
+        val scheduler = WeightedFairScheduler({ 1.0 }, Long.MAX_VALUE, MetricRegistry())
+        val candidates = (1..10).map { EntityDataKey(if (it % 2 == 0) noisy else small, UUID.randomUUID()) }
+        candidates.forEach { scheduler.offer(it) }
+        val inFlight = scheduler.take()
+
+        val removed = scheduler.removeIf { it.entitySetId == noisy || it == inFlight }
+
+        Assert.assertEquals(candidates.filter { it.entitySetId == noisy && it != inFlight }.toSet(), removed.toSet())
+        Assert.assertEquals(9 - removed.size, scheduler.size())
+        Assert.assertEquals(0, scheduler.depth(noisy))
+        Assert.assertTrue(scheduler.isPending(inFlight))
+        Assert.assertTrue(removed.none(scheduler::isPending))
+    }
+
+    @Test
+    fun testSchedulersShareRegistry() {
+        val metricRegistry = MetricRegistry()
+        val first = WeightedFairScheduler({ 1.0 }, Long.MAX_VALUE, metricRegistry)
+        val second = WeightedFairScheduler({ 1.0 }, Long.MAX_VALUE, metricRegistry)
+
+        Assert.assertTrue(first.offer(EntityDataKey(small, UUID.randomUUID())))
+        Assert.assertTrue(second.offer(EntityDataKey(small, UUID.randomUUID())))
+        Assert.assertEquals(1, metricRegistry.gauges.keys.count { it.endsWith(small.toString()) })
+    }
+
+    private class MutableClock(var now: Long = 0) : Clock() {
+        override fun getZone() = ZoneOffset.UTC
+        override fun withZone(zone: java.time.ZoneId?) = this
+        override fun instant(): Instant = Instant.ofEpochMilli(now)
+        override fun millis(): Long = now
+    }
+}